@@ -0,0 +1,62 @@
+package testflight;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the ipa and apk files of synthetic workspaces, the way an upload without a file path does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ArtifactScanBenchmark {
+    private static final int FILES_PER_DIRECTORY = 100;
+
+    @Param({"10000", "100000", "1000000"})
+    public int files;
+
+    private File workspace;
+
+    @Setup
+    public void createWorkspace() throws IOException {
+        workspace = Benchmarks.createTempDir();
+        // a tree of directories of sources, with the build products in one of them
+        for (int i = 0; i < files; i++) {
+            File dir = new File(workspace, "module" + (i / (FILES_PER_DIRECTORY * FILES_PER_DIRECTORY)) + "/src" + (i / FILES_PER_DIRECTORY));
+            String name = i == files / 2 ? "App.ipa" : i == files / 2 + 1 ? "App-dSYM.zip" : "Source" + i + ".m";
+            Benchmarks.createEmptyFile(new File(dir, name));
+        }
+    }
+
+    @TearDown
+    public void deleteWorkspace() throws IOException {
+        Benchmarks.deleteRecursive(workspace);
+    }
+
+    @Benchmark
+    public List<TestflightUploader.UploadRequest> findIpaOrApkFiles() throws IOException, InterruptedException {
+        TestflightUploader.UploadRequest ur = new TestflightUploader.UploadRequest();
+        List<TestflightUploader.UploadRequest> requests = new TestflightRemoteRecorder(workspace.getPath(), ur, null).resolveFiles();
+        if (requests.size() != 1)
+            throw new IllegalStateException("Expected one ipa, found " + requests.size());
+        return requests;
+    }
+}
@@ -0,0 +1,55 @@
+package testflight;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Creates the files the benchmarks work on.
+ */
+final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    static File createTempDir() throws IOException {
+        File dir = File.createTempFile("testflight-benchmark", "");
+        if (!dir.delete() || !dir.mkdir())
+            throw new IOException("Couldn't create " + dir);
+        return dir;
+    }
+
+    static File createEmptyFile(File file) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Couldn't create " + dir);
+        if (!file.createNewFile())
+            throw new IOException("Couldn't create " + file);
+        return file;
+    }
+
+    static File createRandomFile(File file, long size, Random random) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (long written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    static void deleteRecursive(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        if (!file.delete() && file.exists())
+            throw new IOException("Couldn't delete " + file);
+    }
+}
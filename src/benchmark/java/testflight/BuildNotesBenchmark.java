@@ -0,0 +1,105 @@
+package testflight;
+
+import hudson.model.User;
+import hudson.scm.ChangeLogSet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Appends changelogs of growing sizes to the build notes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BuildNotesBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int changes;
+
+    private ChangeLog changeSet;
+
+    @Setup
+    public void createChangeSet() {
+        List<User> authors = new ArrayList<User>();
+        for (int i = 0; i < 20; i++) {
+            User author = mock(User.class);
+            when(author.toString()).thenReturn("Developer " + i);
+            authors.add(author);
+        }
+        List<Change> entries = new ArrayList<Change>();
+        for (int i = 0; i < changes; i++) {
+            entries.add(new Change("Change " + i + ": fixed the thing that broke when the other thing was fixed", authors.get(i % authors.size())));
+        }
+        changeSet = new ChangeLog(entries);
+    }
+
+    @Benchmark
+    public String appendChangelog() {
+        return TestflightRecorder.appendChangelog("Build notes", changeSet);
+    }
+
+    private static class ChangeLog extends ChangeLogSet<Change> {
+        private final List<Change> entries;
+
+        ChangeLog(List<Change> entries) {
+            super(null);
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean isEmptySet() {
+            return entries.isEmpty();
+        }
+
+        public Iterator<Change> iterator() {
+            return entries.iterator();
+        }
+    }
+
+    private static class Change extends ChangeLogSet.Entry {
+        private final String msg;
+        private final User author;
+
+        Change(String msg, User author) {
+            this.msg = msg;
+            this.author = author;
+        }
+
+        @Override
+        public String getMsg() {
+            return msg;
+        }
+
+        @Override
+        public User getAuthor() {
+            return author;
+        }
+
+        @Override
+        public Collection<String> getAffectedPaths() {
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package testflight;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.http.HttpEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds and writes out the multipart body of an upload, with the legacy {@link org.apache.http.entity.mime.MultipartEntity}
+ * and with {@link BufferedMultipartEntity}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MultipartEntityBenchmark {
+    @Param({"1", "50", "200"})
+    public int fileSizeMegabytes;
+
+    private File dir;
+    private TestflightUploader.UploadRequest ur;
+    private TestflightUploader legacyUploader;
+    private TestflightUploader uploader;
+
+    @Setup
+    public void createFiles() throws IOException {
+        dir = Benchmarks.createTempDir();
+        ur = new TestflightUploader.UploadRequest();
+        ur.apiToken = "api";
+        ur.teamToken = "team";
+        ur.buildNotes = "Build notes";
+        ur.lists = "Testers";
+        ur.notifyTeam = true;
+        ur.replace = false;
+        ur.file = Benchmarks.createRandomFile(new File(dir, "app.ipa"), fileSizeMegabytes * 1024L * 1024L, new Random(0));
+        ur.dsymFile = Benchmarks.createRandomFile(new File(dir, "app-dSYM.zip"), fileSizeMegabytes * 1024L * 1024L / 4, new Random(1));
+
+        legacyUploader = new TestflightUploader();
+        legacyUploader.setLegacyMultipartEntity(true);
+        uploader = new TestflightUploader();
+        uploader.setLegacyMultipartEntity(false);
+    }
+
+    @TearDown
+    public void deleteFiles() throws IOException {
+        Benchmarks.deleteRecursive(dir);
+    }
+
+    @Benchmark
+    public long multipartEntity() throws IOException {
+        return writeOut(legacyUploader.createEntity(ur));
+    }
+
+    @Benchmark
+    public long bufferedMultipartEntity() throws IOException {
+        return writeOut(uploader.createEntity(ur));
+    }
+
+    private static long writeOut(HttpEntity entity) throws IOException {
+        CountingOutputStream out = new CountingOutputStream(new NullOutputStream());
+        entity.writeTo(out);
+        return out.count;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package testflight;
+
+import org.apache.commons.io.IOUtils;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses a TestFlight answer the way {@link TestflightUploader} does, copying it to a string first, and straight from
+ * the stream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ResponseParsingBenchmark {
+    // the length of the release notes echoed back in the answer
+    @Param({"100", "10000"})
+    public int releaseNotesLength;
+
+    private byte[] response;
+
+    @Setup
+    public void createResponse() throws IOException {
+        StringBuilder notes = new StringBuilder();
+        for (int i = 0; notes.length() < releaseNotesLength; i++) {
+            notes.append(i).append(". Fixed a bug \\u2014 someone\\n");
+        }
+        response = ("{\"bundle_version\": \"1.0 (1234)\", "
+                + "\"install_url\": \"https://testflightapp.com/install/4d5e6f7a8b9c0d1e2f3a/\", "
+                + "\"config_url\": \"https://testflightapp.com/dashboard/builds/report/1234567/\", "
+                + "\"created_at\": \"2013-04-12 10:22:03\", \"device_family\": \"iPhone/iPod\", \"notify\": false, "
+                + "\"team\": \"Team\", \"minimum_os_version\": \"5.0\", \"release_notes\": \"" + notes + "\", "
+                + "\"binary_size\": 12345678}").getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public Map copyThenParse() throws IOException, ParseException {
+        StringWriter writer = new StringWriter();
+        IOUtils.copy(new ByteArrayInputStream(response), writer, "UTF-8");
+        return (Map) new JSONParser().parse(writer.toString());
+    }
+
+    @Benchmark
+    public Map parseStream() throws IOException, ParseException {
+        return (Map) new JSONParser().parse(new InputStreamReader(new ByteArrayInputStream(response), "UTF-8"));
+    }
+}
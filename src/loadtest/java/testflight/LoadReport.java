@@ -0,0 +1,140 @@
+package testflight;
+
+import org.json.simple.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures a load test run: wall time, executor time, upload latencies, and the peaks of heap and threads.
+ */
+class LoadReport {
+    private static final long SAMPLE_INTERVAL_MILLIS = 20;
+
+    private final String name;
+    private final Map<String, Object> settings;
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final List<Long> latencies = new ArrayList<Long>();
+    private long executorMillis;
+    private long startMillis;
+    private long wallMillis;
+    private volatile long peakHeapBytes;
+    private volatile boolean sampling;
+    private Thread sampler;
+
+    LoadReport(String name, Map<String, Object> settings) {
+        this.name = name;
+        this.settings = settings;
+    }
+
+    /**
+     * Starts the clock, and sampling the heap and the threads.
+     */
+    void start() {
+        System.gc();
+        threads.resetPeakThreadCount();
+        peakHeapBytes = memory.getHeapMemoryUsage().getUsed();
+        sampling = true;
+        sampler = new Thread("Load test sampler") {
+            @Override
+            public void run() {
+                while (sampling) {
+                    peakHeapBytes = Math.max(peakHeapBytes, memory.getHeapMemoryUsage().getUsed());
+                    try {
+                        Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        sampler.setDaemon(true);
+        sampler.start();
+        startMillis = System.currentTimeMillis();
+    }
+
+    void stop() throws InterruptedException {
+        wallMillis = System.currentTimeMillis() - startMillis;
+        sampling = false;
+        sampler.join();
+    }
+
+    /**
+     * Counts the time an executor was busy with a build.
+     */
+    synchronized void addExecutorTime(long millis) {
+        executorMillis += millis;
+    }
+
+    /**
+     * Takes the latencies of the uploads received by the server.
+     */
+    synchronized void addUploads(List<StandInTestflightServer.Upload> uploads) {
+        for (StandInTestflightServer.Upload upload : uploads) {
+            latencies.add(upload.endMillis - upload.startMillis);
+        }
+    }
+
+    synchronized Map<String, Object> getResults() {
+        List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+        Map<String, Object> results = new LinkedHashMap<String, Object>();
+        results.put("wallSeconds", wallMillis / 1000.0);
+        results.put("executorSeconds", executorMillis / 1000.0);
+        results.put("uploads", sorted.size());
+        results.put("uploadLatencyP50Millis", percentile(sorted, 0.50));
+        results.put("uploadLatencyP99Millis", percentile(sorted, 0.99));
+        results.put("uploadLatencyMaxMillis", sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1));
+        results.put("peakHeapMegabytes", peakHeapBytes / (1024 * 1024));
+        results.put("peakThreads", threads.getPeakThreadCount());
+        return results;
+    }
+
+    // nearest rank
+    static long percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty())
+            return 0;
+        int rank = (int) Math.ceil(p * sorted.size());
+        return sorted.get(Math.max(rank, 1) - 1);
+    }
+
+    /**
+     * Prints the settings and the results, and writes them as JSON to <code>target/load-test-&lt;name&gt;.json</code>.
+     */
+    void write(PrintStream out) throws IOException {
+        Map<String, Object> results = getResults();
+        out.println("Load test " + name);
+        for (Map.Entry<String, Object> setting : settings.entrySet()) {
+            out.println(String.format("  %-24s %s", setting.getKey(), setting.getValue()));
+        }
+        for (Map.Entry<String, Object> result : results.entrySet()) {
+            out.println(String.format("  %-24s %s", result.getKey(), result.getValue()));
+        }
+
+        Map<String, Object> json = new LinkedHashMap<String, Object>();
+        json.put("name", name);
+        json.put("settings", settings);
+        json.put("results", results);
+        File dir = new File("target");
+        dir.mkdirs();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dir, "load-test-" + name + ".json")), "UTF-8");
+        try {
+            JSONObject.writeJSONString(json, writer);
+        } finally {
+            writer.close();
+        }
+    }
+}
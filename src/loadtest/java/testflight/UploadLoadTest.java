@@ -0,0 +1,239 @@
+package testflight;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.model.StreamBuildListener;
+import hudson.util.Secret;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.jvnet.hudson.test.HudsonTestCase;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finishes many builds uploading to many teams at the same moment, against a {@link StandInTestflightServer}, and
+ * reports how long it took and what it cost.
+ * <p/>
+ * Runs with <code>mvn -Pload-test test</code>, and is set up with system properties named after this class, e.g.
+ * <code>-Dtestflight.UploadLoadTest.jobs=100</code>:
+ * <dl>
+ * <dt>jobs</dt><dd>the number of builds finishing at once, 50 by default</dd>
+ * <dt>teams</dt><dd>the number of teams each build uploads to, 5 by default</dd>
+ * <dt>artifactSize</dt><dd>the size in KB of each uploaded file, 1024 by default</dd>
+ * <dt>latency</dt><dd>how long in ms the server takes to answer each upload, 200 by default</dd>
+ * <dt>serverRate</dt><dd>how fast in KB/s the server reads each upload, 0 (the default) for as fast as it can</dd>
+ * <dt>uploadConcurrency</dt><dd>the number of teams each build uploads to at the same time, 1 by default</dd>
+ * <dt>asyncUpload</dt><dd>whether the builds upload in the background, false by default</dd>
+ * </dl>
+ * The results are printed, and written as JSON to <code>target/load-test-*.json</code>.
+ */
+public class UploadLoadTest extends HudsonTestCase {
+    private static final String PREFIX = UploadLoadTest.class.getName() + ".";
+
+    private final int jobs = Integer.getInteger(PREFIX + "jobs", 50);
+    private final int teams = Integer.getInteger(PREFIX + "teams", 5);
+    private final int artifactSize = Integer.getInteger(PREFIX + "artifactSize", 1024);
+    private final int latency = Integer.getInteger(PREFIX + "latency", 200);
+    private final int serverRate = Integer.getInteger(PREFIX + "serverRate", 0);
+    private final int uploadConcurrency = Integer.getInteger(PREFIX + "uploadConcurrency", 1);
+    private final boolean asyncUpload = Boolean.getBoolean(PREFIX + "asyncUpload");
+
+    private StandInTestflightServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new StandInTestflightServer().withLatency(latency).withMaxBytesPerSecond(serverRate * 1024L);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+        super.tearDown();
+    }
+
+    /**
+     * Runs the builds through {@link TestflightRecorder#perform}, each on its own executor.
+     */
+    public void testConcurrentBuilds() throws Exception {
+        List<TokenPair> tokenPairs = new ArrayList<TokenPair>();
+        for (int team = 0; team < teams; team++) {
+            tokenPairs.add(new TokenPair(getTeamName(team), Secret.fromString("api"), Secret.fromString(getTeamName(team)), server.getEndpoint()));
+        }
+        hudson.getDescriptorByType(TestflightRecorder.DescriptorImpl.class).setTokenPairs(tokenPairs);
+        hudson.setNumExecutors(jobs);
+        hudson.setQuietPeriod(0);
+
+        List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+        for (int job = 0; job < jobs; job++) {
+            FreeStyleProject project = createFreeStyleProject("job" + job);
+            project.getBuildersList().add(new ArtifactBuilder(job));
+            project.getPublishersList().add(createRecorder());
+            projects.add(project);
+        }
+
+        LoadReport report = new LoadReport("builds", getSettings());
+        report.start();
+        List<Future<FreeStyleBuild>> builds = new ArrayList<Future<FreeStyleBuild>>();
+        for (FreeStyleProject project : projects) {
+            builds.add(project.scheduleBuild2(0));
+        }
+        for (Future<FreeStyleBuild> future : builds) {
+            FreeStyleBuild build = future.get();
+            assertEquals(getLog(build), Result.SUCCESS, build.getResult());
+            TestflightAsyncUploadAction upload = build.getAction(TestflightAsyncUploadAction.class);
+            if (upload != null) {
+                assertTrue(getLog(build), upload.await(0));
+            }
+            report.addExecutorTime(build.getDuration());
+        }
+        report.stop();
+
+        assertEquals(jobs * teams, server.getUploads().size());
+        report.addUploads(server.getUploads());
+        report.write(System.out);
+    }
+
+    /**
+     * Runs the uploads of the builds straight through {@link TestflightRemoteRecorder#uploadWith}, one thread per
+     * build, to tell the cost of the uploads from the cost of running builds.
+     */
+    public void testConcurrentRemoteUploads() throws Exception {
+        final List<File> workspaces = new ArrayList<File>();
+        for (int job = 0; job < jobs; job++) {
+            File workspace = createTmpDir();
+            for (int team = 0; team < teams; team++) {
+                createArtifact(new File(workspace, getTeamName(team) + "/App.ipa"), job, team);
+            }
+            workspaces.add(workspace);
+        }
+        final BuildListener listener = new StreamBuildListener(new NullOutputStream());
+
+        final LoadReport report = new LoadReport("remote-uploads", getSettings());
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        try {
+            report.start();
+            List<Future<List<TeamUploadResult>>> results = new ArrayList<Future<List<TeamUploadResult>>>();
+            for (final File workspace : workspaces) {
+                results.add(executor.submit(new Callable<List<TeamUploadResult>>() {
+                    public List<TeamUploadResult> call() throws Exception {
+                        long start = System.currentTimeMillis();
+                        try {
+                            return new TestflightRemoteBatchRecorder(workspace.getPath(), createUploadRequests(workspace), listener, uploadConcurrency).call();
+                        } finally {
+                            report.addExecutorTime(System.currentTimeMillis() - start);
+                        }
+                    }
+                }));
+            }
+            for (Future<List<TeamUploadResult>> result : results) {
+                for (TeamUploadResult teamResult : result.get()) {
+                    assertTrue(String.valueOf(teamResult.failure), teamResult.isSuccess());
+                }
+            }
+            report.stop();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(jobs * teams, server.getUploads().size());
+        report.addUploads(server.getUploads());
+        report.write(System.out);
+    }
+
+    private TestflightRecorder createRecorder() {
+        TestflightTeam[] additionalTeams = new TestflightTeam[teams - 1];
+        for (int team = 1; team < teams; team++) {
+            additionalTeams[team - 1] = new TestflightTeam(getTeamName(team), getTeamName(team) + "/App.ipa", null);
+        }
+        return new TestflightRecorder(getTeamName(0), null, null, false, "Load test", false, getTeamName(0) + "/App.ipa", null, "", false,
+                null, null, null, 0, false, additionalTeams, uploadConcurrency, 1, null, null, null, null, null, 0, null, null, null,
+                false, asyncUpload, false);
+    }
+
+    private List<TestflightUploader.UploadRequest> createUploadRequests(File workspace) {
+        List<TestflightUploader.UploadRequest> requests = new ArrayList<TestflightUploader.UploadRequest>();
+        for (int team = 0; team < teams; team++) {
+            TestflightUploader.UploadRequest ur = new TestflightUploader.UploadRequest();
+            ur.filePaths = new File(workspace, getTeamName(team) + "/App.ipa").getPath();
+            ur.endpoint = server.getEndpoint();
+            ur.apiToken = "api";
+            ur.teamToken = getTeamName(team);
+            ur.buildNotes = "Load test";
+            ur.lists = "";
+            ur.notifyTeam = false;
+            ur.replace = false;
+            ur.debug = false;
+            ur.maxAttempts = 1;
+            requests.add(ur);
+        }
+        return requests;
+    }
+
+    private Map<String, Object> getSettings() {
+        Map<String, Object> settings = new LinkedHashMap<String, Object>();
+        settings.put("jobs", jobs);
+        settings.put("teams", teams);
+        settings.put("artifactSizeKilobytes", artifactSize);
+        settings.put("latencyMillis", latency);
+        settings.put("serverRateKilobytesPerSecond", serverRate);
+        settings.put("uploadConcurrency", uploadConcurrency);
+        settings.put("asyncUpload", asyncUpload);
+        return settings;
+    }
+
+    private static String getTeamName(int team) {
+        return "team" + team;
+    }
+
+    // every file has its own content, so that no upload is shared with another
+    private void createArtifact(File file, int job, int team) throws IOException {
+        file.getParentFile().mkdirs();
+        Random random = new Random(job * 1000L + team);
+        byte[] buffer = new byte[64 * 1024];
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (long written = 0; written < artifactSize * 1024L; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, artifactSize * 1024L - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Creates the files of each team in the workspace.
+     */
+    private class ArtifactBuilder extends TestBuilder {
+        private final int job;
+
+        ArtifactBuilder(int job) {
+            this.job = job;
+        }
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+            for (int team = 0; team < teams; team++) {
+                createArtifact(new File(build.getWorkspace().getRemote(), getTeamName(team) + "/App.ipa"), job, team);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package testflight;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Computes the SHA-256 and MD5 (the digest of Jenkins fingerprints) of the files to upload in a single read, and
+ * remembers them for as long as the files keep their size and modification time, so that a file already hashed on this
+ * node isn't read again.
+ * <p/>
+ * A file being uploaded is hashed from the bytes sent, see {@link BufferedMultipartEntity#digestWhileWriting}.
+ */
+class ArtifactDigests {
+    private static final int MAX_CACHED_DIGESTS = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // the least recently used digests are dropped first
+    private static final Map<String, Digests> cache = new LinkedHashMap<String, Digests>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Digests> eldest) {
+            return size() > MAX_CACHED_DIGESTS;
+        }
+    };
+
+    private ArtifactDigests() {
+    }
+
+    /**
+     * Returns the digests of the file if they are known and the file didn't change since, null otherwise.
+     */
+    static Digests getCachedDigests(File file) {
+        Digests cached;
+        synchronized (cache) {
+            cached = cache.get(file.getAbsolutePath());
+        }
+        if (cached != null && cached.length == file.length() && cached.lastModified == file.lastModified()) {
+            return cached;
+        }
+        return null;
+    }
+
+    static String getCachedSha256(File file) {
+        Digests cached = getCachedDigests(file);
+        return cached != null ? cached.sha256 : null;
+    }
+
+    /**
+     * Returns the digests of the file, reading it only if they aren't known yet.
+     */
+    static Digests digests(File file) throws IOException {
+        Digests digests = getCachedDigests(file);
+        if (digests != null) {
+            return digests;
+        }
+        Digester digester = new Digester(file);
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digester.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return digester.finish();
+    }
+
+    static String sha256(File file) throws IOException {
+        return digests(file).sha256;
+    }
+
+    /**
+     * Copies the file, e.g. out of the workspace, computing its digests from the bytes copied if they aren't known yet,
+     * and remembers them for the copy too: neither file is read again to be hashed.
+     */
+    static void copy(File file, File copy) throws IOException {
+        Digests digests = getCachedDigests(file);
+        Digester digester = digests == null ? new Digester(file) : null;
+        copy.getParentFile().mkdirs();
+        InputStream in = new FileInputStream(file);
+        try {
+            OutputStream out = new FileOutputStream(copy);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    if (digester != null) {
+                        digester.update(buffer, 0, read);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        copy.setLastModified(file.lastModified());
+        if (digester != null) {
+            // the digests of the bytes copied, even if the file was modified meanwhile
+            digests = digester.finish();
+        } else if (digests.length != file.length() || digests.lastModified != file.lastModified()) {
+            return;
+        }
+        synchronized (cache) {
+            cache.put(copy.getAbsolutePath(), new Digests(copy.length(), copy.lastModified(), digests.sha256, digests.md5));
+        }
+    }
+
+    static String sha256(String s) {
+        try {
+            return toHex(newDigest("SHA-256").digest(s.getBytes("UTF-8")));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE has SHA-256 and MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Computes the digests of a file from its content passed in order, and remembers them once it has all been.
+     */
+    static class Digester {
+        private final File file;
+        // sampled before reading, a file modified meanwhile will be hashed again next time
+        private final long length;
+        private final long lastModified;
+        private final MessageDigest sha256 = newDigest("SHA-256");
+        private final MessageDigest md5 = newDigest("MD5");
+
+        Digester(File file) {
+            this.file = file;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        void update(byte[] bytes, int offset, int length) {
+            sha256.update(bytes, offset, length);
+            md5.update(bytes, offset, length);
+        }
+
+        Digests finish() {
+            Digests digests = new Digests(length, lastModified, toHex(sha256.digest()), toHex(md5.digest()));
+            synchronized (cache) {
+                cache.put(file.getAbsolutePath(), digests);
+            }
+            return digests;
+        }
+    }
+
+    /**
+     * The digests of a file, as hexadecimal strings, and the state of the file they were computed from.
+     */
+    static class Digests {
+        final long length;
+        final long lastModified;
+        final String sha256;
+        final String md5;
+
+        Digests(long length, long lastModified, String sha256, String md5) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.sha256 = sha256;
+            this.md5 = md5;
+        }
+
+        String getSha256() {
+            return sha256;
+        }
+
+        String getMd5() {
+            return md5;
+        }
+    }
+}
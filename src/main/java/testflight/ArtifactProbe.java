@@ -0,0 +1,121 @@
+package testflight;
+
+import hudson.model.BuildListener;
+import hudson.remoting.Callable;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Describes the files the teams of a build would upload, by path, size and modification time, to tell when the build
+ * is done writing them. Returns null as long as a team has no file to upload.
+ * <p/>
+ * Once the files are found, the next probes only look at them again, and only search the workspace again if one of
+ * them goes away. The search is a single scan for all the teams.
+ */
+public class ArtifactProbe implements Callable<ArtifactProbe.Files, Throwable>, Serializable {
+    final private String remoteWorkspace;
+    final private List<TestflightUploader.UploadRequest> uploadRequests;
+    final private Files previous;
+    final private BuildListener listener;
+
+    /**
+     * @param previous what the previous probe found, or null
+     */
+    public ArtifactProbe(String remoteWorkspace, List<TestflightUploader.UploadRequest> uploadRequests, Files previous, BuildListener listener) {
+        this.remoteWorkspace = remoteWorkspace;
+        this.uploadRequests = uploadRequests;
+        this.previous = previous;
+        this.listener = listener;
+    }
+
+    public Files call() throws Throwable {
+        if (previous != null) {
+            Files current = describe(previous.paths);
+            if (current != null)
+                return current;
+        }
+
+        String scanPatterns = getScanPatterns();
+        ArtifactScanner.ScanResult scan = null;
+        List<String> paths = new ArrayList<String>();
+        for (TestflightUploader.UploadRequest teamRequest : uploadRequests) {
+            TestflightUploader.UploadRequest ur = TestflightUploader.UploadRequest.copy(teamRequest);
+            ur.scanPatterns = scanPatterns;
+            ur.scanId = null;
+            TestflightRemoteRecorder recorder = new TestflightRemoteRecorder(remoteWorkspace, ur, listener);
+            if (scan != null) {
+                recorder.useScan(scan);
+            }
+            List<TestflightUploader.UploadRequest> requests = recorder.resolveFiles();
+            if (requests.isEmpty())
+                return null;
+            scan = recorder.getScan();
+            for (TestflightUploader.UploadRequest request : requests) {
+                paths.add(request.file.getPath());
+                if (request.dsymFile != null) {
+                    paths.add(request.dsymFile.getPath());
+                }
+            }
+        }
+        return describe(paths);
+    }
+
+    // the patterns of all the teams, for them to share a scan
+    private String getScanPatterns() {
+        Set<String> scanPatterns = new LinkedHashSet<String>();
+        for (TestflightUploader.UploadRequest ur : uploadRequests) {
+            scanPatterns.add(StringUtils.isNotEmpty(ur.filePaths) ? ur.filePaths : TestflightRemoteRecorder.DEFAULT_FILE_PATTERNS);
+        }
+        return StringUtils.join(scanPatterns, ",");
+    }
+
+    // null if one of the files doesn't exist anymore
+    private static Files describe(List<String> paths) {
+        StringBuilder sb = new StringBuilder();
+        for (String path : paths) {
+            File file = new File(path);
+            if (!file.exists())
+                return null;
+            // the modification time of a directory doesn't change with the files it contains
+            long size = file.isDirectory() ? FileUtils.sizeOfDirectory(file) : file.length();
+            sb.append(path).append(':').append(size).append(':').append(file.lastModified()).append('\n');
+        }
+        return new Files(paths, sb.toString());
+    }
+
+    /**
+     * The files found by a probe, equal to those of another probe if none of them changed in between.
+     */
+    public static class Files implements Serializable {
+        private final List<String> paths;
+        private final String description;
+
+        Files(List<String> paths, String description) {
+            this.paths = paths;
+            this.description = description;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Files && description.equals(((Files) o).description);
+        }
+
+        @Override
+        public int hashCode() {
+            return description.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package testflight;
+
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Finds the files to upload in a workspace with a single walk, skipping the directories that can't contain them.
+ * <p/>
+ * A directory is pruned when it matches one of the exclude patterns, or when none of the include patterns can match
+ * a file below it. The dSYMs are indexed during the same walk. Scans are cached by key, so that all the teams
+ * of a build uploading from the same agent share one walk: it is done with the patterns of all the teams,
+ * and each team then {@link ScanResult#select selects} its own files from it.
+ */
+public class ArtifactScanner {
+    /**
+     * Directories never worth walking into: the version control metadata. Anything else, e.g. <code>Pods</code>,
+     * is only skipped when the job excludes it, as some projects do build their apps there.
+     */
+    static final List<String> DEFAULT_EXCLUDES = Arrays.asList("**/.git", "**/.svn", "**/.hg", "**/CVS");
+
+    private static final int MAX_CACHED_SCANS = 16;
+
+    private static final Map<String, Future<ScanResult>> scans = new LinkedHashMap<String, Future<ScanResult>>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Future<ScanResult>> eldest) {
+            return size() > MAX_CACHED_SCANS;
+        }
+    };
+
+    private final File baseDir;
+    private final List<String> includes;
+    private final List<String> excludes;
+
+    public ArtifactScanner(File baseDir, String includes, String excludes) {
+        this.baseDir = baseDir;
+        this.includes = splitPatterns(includes);
+        this.excludes = new ArrayList<String>(splitPatterns(excludes));
+        this.excludes.addAll(normalizePatterns(DEFAULT_EXCLUDES));
+    }
+
+    /**
+     * Returns the scan of the given workspace, walking it only if no scan with the same key and patterns was done yet.
+     */
+    static ScanResult scan(String key, final File baseDir, final String includes, final String excludes) throws IOException, InterruptedException {
+        if (key == null) {
+            return new ArtifactScanner(baseDir, includes, excludes).scan();
+        }
+        String cacheKey = key + "|" + baseDir + "|" + includes + "|" + excludes;
+        FutureTask<ScanResult> task = null;
+        Future<ScanResult> scan;
+        synchronized (scans) {
+            scan = scans.get(cacheKey);
+            if (scan == null) {
+                task = new FutureTask<ScanResult>(new Callable<ScanResult>() {
+                    public ScanResult call() throws IOException {
+                        return new ArtifactScanner(baseDir, includes, excludes).scan();
+                    }
+                });
+                scans.put(cacheKey, task);
+                scan = task;
+            }
+        }
+        if (task != null) {
+            // we are the first one asking, walk in this thread
+            task.run();
+        }
+        try {
+            return scan.get();
+        } catch (ExecutionException e) {
+            synchronized (scans) {
+                scans.remove(cacheKey);
+            }
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause().toString());
+        }
+    }
+
+    public ScanResult scan() throws IOException {
+        ScanResult result = new ScanResult();
+        walk(baseDir, "", result, new HashSet<String>());
+        return result;
+    }
+
+    private void walk(File dir, String relativeDir, ScanResult result, Set<String> visited) throws IOException {
+        // protect ourselves against symlink loops
+        if (!visited.add(dir.getCanonicalPath()))
+            return;
+
+        String[] children = dir.list();
+        if (children == null)
+            return;
+        for (String child : children) {
+            File file = new File(dir, child);
+            String relativePath = relativeDir + child;
+            if (file.isDirectory()) {
+                if (isDsymDirectory(child)) {
+                    result.addDsym(file);
+                }
+                if (!isPruned(relativePath)) {
+                    walk(file, relativePath + File.separator, result, visited);
+                }
+            } else {
+                if (isDsymZip(child)) {
+                    result.addDsym(file);
+                }
+                if (isIncluded(relativePath)) {
+                    result.files.put(relativePath, file);
+                }
+            }
+        }
+    }
+
+    private boolean isIncluded(String relativePath) {
+        for (String exclude : excludes) {
+            if (SelectorUtils.matchPath(exclude, relativePath))
+                return false;
+        }
+        for (String include : includes) {
+            if (SelectorUtils.matchPath(include, relativePath))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean isPruned(String relativeDir) {
+        for (String exclude : excludes) {
+            if (SelectorUtils.matchPath(exclude, relativeDir)
+                    || (exclude.endsWith(File.separator + "**") && SelectorUtils.matchPath(exclude.substring(0, exclude.length() - 3), relativeDir)))
+                return true;
+        }
+        for (String include : includes) {
+            if (SelectorUtils.matchPatternStart(include, relativeDir))
+                return false;
+        }
+        return true;
+    }
+
+    static boolean isDsymZip(String name) {
+        return name.endsWith("-dSYM.zip") || name.endsWith(".dSYM.zip");
+    }
+
+    static boolean isDsymDirectory(String name) {
+        return name.endsWith(".dSYM");
+    }
+
+    /**
+     * Splits a comma separated list of Ant patterns, the same way {@link hudson.Util#createFileSet} does.
+     */
+    static List<String> splitPatterns(String patterns) {
+        List<String> result = new ArrayList<String>();
+        if (patterns == null)
+            return result;
+        for (String pattern : patterns.split(",")) {
+            pattern = pattern.trim();
+            if (pattern.length() > 0)
+                result.add(pattern);
+        }
+        return normalizePatterns(result);
+    }
+
+    // same normalization as Ant's DirectoryScanner
+    private static List<String> normalizePatterns(List<String> patterns) {
+        List<String> result = new ArrayList<String>();
+        for (String pattern : patterns) {
+            pattern = pattern.replace('/', File.separatorChar).replace('\\', File.separatorChar);
+            if (pattern.endsWith(File.separator))
+                pattern += "**";
+            result.add(pattern);
+        }
+        return result;
+    }
+
+    /**
+     * The files matching the include patterns, and the dSYMs found on the way.
+     */
+    public static class ScanResult {
+        // by path relative to the scanned directory
+        private final Map<String, File> files = new TreeMap<String, File>();
+        private final Map<String, File> dsyms = new HashMap<String, File>();
+
+        public List<File> getFiles() {
+            return new ArrayList<File>(files.values());
+        }
+
+        /**
+         * Returns the files found by the scan that match the given patterns, which must be a subset of the scanned ones.
+         */
+        public List<File> select(String patterns) {
+            List<String> includes = splitPatterns(patterns);
+            List<File> selected = new ArrayList<File>();
+            for (Map.Entry<String, File> file : files.entrySet()) {
+                for (String include : includes) {
+                    if (SelectorUtils.matchPath(include, file.getKey())) {
+                        selected.add(file.getValue());
+                        break;
+                    }
+                }
+            }
+            return selected;
+        }
+
+        private void addDsym(File dsym) {
+            dsyms.put(dsym.getAbsolutePath(), dsym);
+        }
+
+        /**
+         * Returns the dSYM found at the given path during the scan, or null.
+         */
+        public File getDsym(File path) {
+            return dsyms.get(path.getAbsolutePath());
+        }
+    }
+}
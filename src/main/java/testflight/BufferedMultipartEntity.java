@@ -0,0 +1,174 @@
+package testflight;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import org.apache.http.entity.mime.content.FileBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A multipart/form-data entity that streams its file parts through one large buffer, reused for all of them, instead
+ * of the small buffers {@link FileBody} allocates for each part.
+ * <p/>
+ * When the size of every part is known up front, the request is sent with an exact Content-Length, otherwise it is
+ * sent chunked. The other parts are serialized once, when they are added.
+ * <p/>
+ * File parts can be hashed on the way, so that uploading a file doesn't take a second read to fingerprint it.
+ */
+public class BufferedMultipartEntity extends AbstractHttpEntity {
+    private static final String CRLF = "\r\n";
+    private static final String ASCII = "US-ASCII";
+    private static final char[] BOUNDARY_CHARS = "-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+    // the file parts are read and written this much at a time
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final String boundary;
+    private final List<Object> segments = new ArrayList<Object>();
+    private final Set<File> digestedFiles = new HashSet<File>();
+
+    public BufferedMultipartEntity() {
+        this.boundary = generateBoundary();
+        setContentType("multipart/form-data; boundary=" + boundary);
+    }
+
+    public void addPart(String name, AbstractContentBody body) throws IOException {
+        StringBuilder header = new StringBuilder();
+        header.append("--").append(boundary).append(CRLF);
+        header.append("Content-Disposition: form-data; name=\"").append(name).append("\"");
+        if (body.getFilename() != null) {
+            header.append("; filename=\"").append(body.getFilename()).append("\"");
+        }
+        header.append(CRLF);
+        header.append("Content-Type: ").append(body.getMimeType());
+        if (body.getCharset() != null) {
+            header.append("; charset=").append(body.getCharset());
+        }
+        header.append(CRLF);
+        header.append("Content-Transfer-Encoding: ").append(body.getTransferEncoding()).append(CRLF);
+        header.append(CRLF);
+
+        if (body instanceof FileBody) {
+            segments.add(header.toString().getBytes(ASCII));
+            segments.add(((FileBody) body).getFile());
+            segments.add(CRLF.getBytes(ASCII));
+        } else if (body.getContentLength() < 0) {
+            // generated while it is sent, e.g. a zip
+            segments.add(header.toString().getBytes(ASCII));
+            segments.add(body);
+            segments.add(CRLF.getBytes(ASCII));
+            setChunked(true);
+        } else {
+            ByteArrayOutputStream part = new ByteArrayOutputStream();
+            part.write(header.toString().getBytes(ASCII));
+            body.writeTo(part);
+            part.write(CRLF.getBytes(ASCII));
+            segments.add(part.toByteArray());
+        }
+    }
+
+    /**
+     * Computes the {@link ArtifactDigests} of the given file part from the bytes written, unless they are already known.
+     * They are only remembered if the whole file gets written.
+     */
+    public void digestWhileWriting(File file) {
+        digestedFiles.add(file);
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public boolean isStreaming() {
+        return false;
+    }
+
+    public long getContentLength() {
+        long length = 0;
+        for (Object segment : segments) {
+            if (segment instanceof AbstractContentBody) {
+                return -1;
+            } else if (segment instanceof File) {
+                length += ((File) segment).length();
+            } else {
+                length += ((byte[]) segment).length;
+            }
+        }
+        return length + closingDelimiter().length;
+    }
+
+    public InputStream getContent() {
+        throw new UnsupportedOperationException("Multipart form entity does not implement #getContent()");
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] buffer = null;
+        for (Object segment : segments) {
+            if (segment instanceof File) {
+                if (buffer == null) {
+                    buffer = new byte[BUFFER_SIZE];
+                }
+                File file = (File) segment;
+                boolean digest = digestedFiles.contains(file) && ArtifactDigests.getCachedDigests(file) == null;
+                copy(file, out, buffer, digest ? new ArtifactDigests.Digester(file) : null);
+            } else if (segment instanceof AbstractContentBody) {
+                ((AbstractContentBody) segment).writeTo(out);
+            } else {
+                out.write((byte[]) segment);
+            }
+        }
+        out.write(closingDelimiter());
+        out.flush();
+    }
+
+    private static void copy(File file, OutputStream out, byte[] buffer, ArtifactDigests.Digester digester) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            // exactly the size announced in the Content-Length, even if the file grows meanwhile
+            long remaining = in.getChannel().size();
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("File " + file + " was truncated while being uploaded");
+                }
+                out.write(buffer, 0, read);
+                if (digester != null) {
+                    digester.update(buffer, 0, read);
+                }
+                remaining -= read;
+            }
+            if (digester != null) {
+                digester.finish();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private byte[] closingDelimiter() {
+        try {
+            return ("--" + boundary + "--" + CRLF).getBytes(ASCII);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String generateBoundary() {
+        StringBuilder buffer = new StringBuilder();
+        Random rand = new Random();
+        int count = rand.nextInt(11) + 30; // a random size from 30 to 40
+        for (int i = 0; i < count; i++) {
+            buffer.append(BOUNDARY_CHARS[rand.nextInt(BOUNDARY_CHARS.length)]);
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,78 @@
+package testflight;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps a request entity to count the bytes written to the connection, so that other threads can follow the upload.
+ */
+class CountingHttpEntity extends HttpEntityWrapper {
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private volatile boolean finished;
+    private volatile long writeStartMillis;
+    private volatile long writeEndMillis;
+
+    CountingHttpEntity(HttpEntity wrapped) {
+        super(wrapped);
+    }
+
+    long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Whether the whole body has been written, i.e. we are now waiting for the response.
+     */
+    boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * When the connection was established and the body started to be written, or 0.
+     */
+    long getWriteStartMillis() {
+        return writeStartMillis;
+    }
+
+    /**
+     * When the last byte of the body was written, or 0.
+     */
+    long getWriteEndMillis() {
+        return writeEndMillis;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        finished = false;
+        bytesWritten.set(0);
+        writeEndMillis = 0;
+        writeStartMillis = System.currentTimeMillis();
+        wrappedEntity.writeTo(new CountingOutputStream(out));
+        out.flush();
+        writeEndMillis = System.currentTimeMillis();
+        finished = true;
+    }
+
+    private class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytesWritten.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytesWritten.addAndGet(len);
+        }
+    }
+}
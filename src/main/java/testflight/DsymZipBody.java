@@ -0,0 +1,41 @@
+package testflight;
+
+import org.apache.http.entity.mime.content.AbstractContentBody;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A multipart body made of the zip of a .dSYM directory, compressed while it is sent.
+ * <p/>
+ * Its length is unknown until it is written, so a request containing it is sent chunked.
+ */
+class DsymZipBody extends AbstractContentBody {
+    private final File dsymDirectory;
+
+    DsymZipBody(File dsymDirectory) {
+        super("application/zip");
+        this.dsymDirectory = dsymDirectory;
+    }
+
+    public String getFilename() {
+        return dsymDirectory.getName() + ".zip";
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        new ParallelZipWriter(dsymDirectory, Runtime.getRuntime().availableProcessors()).writeTo(out);
+    }
+
+    public String getCharset() {
+        return null;
+    }
+
+    public String getTransferEncoding() {
+        return "binary";
+    }
+
+    public long getContentLength() {
+        return -1;
+    }
+}
@@ -0,0 +1,311 @@
+package testflight;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Zips a directory straight into an output stream, compressing its files on all the cores.
+ * <p/>
+ * Small files are compressed ahead in parallel, a bounded number at a time, and written in order as they complete.
+ * Files bigger than {@link #MAX_BUFFERED_FILE_SIZE} are compressed while they are written, with a data descriptor
+ * after their data, so that they are never held in memory. Nothing is written to disk.
+ * <p/>
+ * Java 6's {@link Deflater} can't flush a stream in the middle, so one file can't be split between several cores:
+ * the compression of a big file is overlapped with the sending of the previous ones instead.
+ */
+class ParallelZipWriter {
+    static final long MAX_BUFFERED_FILE_SIZE = 16 * 1024 * 1024;
+
+    private static final int LOCAL_FILE_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int VERSION = 20;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final long MAX_ZIP_SIZE = 0xFFFFFFFFL;
+
+    private final File dir;
+    private final int threads;
+
+    ParallelZipWriter(File dir, int threads) {
+        this.dir = dir;
+        this.threads = threads;
+    }
+
+    /**
+     * Writes the zip of the directory, whose entries are all prefixed with the name of the directory, like <tt>zip -r</tt> does.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        list(dir, dir.getName() + "/", entries);
+        if (entries.size() > 0xFFFF) {
+            throw new IOException("Too many files in " + dir + " to zip them without zip64");
+        }
+
+        CountingOutputStream zip = new CountingOutputStream(out);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("Testflight dSYM compression"));
+        try {
+            LinkedList<Future<Entry>> pending = new LinkedList<Future<Entry>>();
+            int next = 0;
+            for (Entry entry : entries) {
+                // keep the compressors busy, but don't buffer more than a few files per core
+                while (next < entries.size() && pending.size() < threads * 2) {
+                    pending.add(executor.submit(compressTask(entries.get(next++))));
+                }
+                Entry compressed = get(pending.removeFirst());
+                writeEntry(zip, compressed);
+                compressed.data = null;
+            }
+            writeCentralDirectory(zip, entries);
+        } finally {
+            executor.shutdownNow();
+        }
+        zip.flush();
+    }
+
+    private static void list(File dir, String name, List<Entry> entries) throws IOException {
+        entries.add(new Entry(dir, name, true));
+        String[] children = dir.list();
+        if (children == null)
+            throw new IOException("Couldn't list " + dir);
+        Arrays.sort(children);
+        for (String child : children) {
+            File file = new File(dir, child);
+            if (file.isDirectory()) {
+                list(file, name + child + "/", entries);
+            } else {
+                entries.add(new Entry(file, name + child, false));
+            }
+        }
+    }
+
+    private static Callable<Entry> compressTask(final Entry entry) {
+        return new Callable<Entry>() {
+            public Entry call() throws IOException {
+                if (!entry.directory && entry.file.length() <= MAX_BUFFERED_FILE_SIZE) {
+                    compress(entry);
+                }
+                return entry;
+            }
+        };
+    }
+
+    private static Entry get(Future<Entry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException("Interrupted while compressing the dSYM");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause().toString());
+        }
+    }
+
+    private static void compress(Entry entry) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater);
+            entry.size = copy(entry.file, out, entry.crc);
+            out.finish();
+        } finally {
+            deflater.end();
+        }
+        entry.data = compressed.toByteArray();
+        entry.compressedSize = entry.data.length;
+    }
+
+    private static long copy(File file, OutputStream out, CRC32 crc) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            long size = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+                size += read;
+            }
+            return size;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeEntry(CountingOutputStream zip, Entry entry) throws IOException {
+        entry.offset = zip.count;
+        boolean streamed = !entry.directory && entry.data == null;
+        entry.flags = FLAG_UTF8 | (streamed ? FLAG_DATA_DESCRIPTOR : 0);
+        byte[] name = entry.name.getBytes("UTF-8");
+
+        writeInt(zip, LOCAL_FILE_HEADER);
+        writeShort(zip, VERSION);
+        writeShort(zip, entry.flags);
+        writeShort(zip, entry.directory ? STORED : DEFLATED);
+        writeInt(zip, entry.dosTime);
+        writeInt(zip, streamed ? 0 : entry.crc.getValue());
+        writeInt(zip, streamed ? 0 : entry.compressedSize);
+        writeInt(zip, streamed ? 0 : entry.size);
+        writeShort(zip, name.length);
+        writeShort(zip, 0);
+        zip.write(name);
+
+        if (entry.data != null) {
+            zip.write(entry.data);
+        } else if (streamed) {
+            long start = zip.count;
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                DeflaterOutputStream out = new DeflaterOutputStream(new NonClosingOutputStream(zip), deflater, 64 * 1024);
+                entry.size = copy(entry.file, out, entry.crc);
+                out.finish();
+            } finally {
+                deflater.end();
+            }
+            entry.compressedSize = zip.count - start;
+
+            writeInt(zip, DATA_DESCRIPTOR);
+            writeInt(zip, entry.crc.getValue());
+            writeInt(zip, entry.compressedSize);
+            writeInt(zip, entry.size);
+        }
+        if (zip.count > MAX_ZIP_SIZE || entry.size > MAX_ZIP_SIZE) {
+            throw new IOException("The zip of " + dir + " is too big to be written without zip64");
+        }
+    }
+
+    private void writeCentralDirectory(CountingOutputStream zip, List<Entry> entries) throws IOException {
+        long start = zip.count;
+        for (Entry entry : entries) {
+            byte[] name = entry.name.getBytes("UTF-8");
+            writeInt(zip, CENTRAL_DIRECTORY_HEADER);
+            writeShort(zip, VERSION);
+            writeShort(zip, VERSION);
+            writeShort(zip, entry.flags);
+            writeShort(zip, entry.directory ? STORED : DEFLATED);
+            writeInt(zip, entry.dosTime);
+            writeInt(zip, entry.crc.getValue());
+            writeInt(zip, entry.compressedSize);
+            writeInt(zip, entry.size);
+            writeShort(zip, name.length);
+            writeShort(zip, 0); // extra field
+            writeShort(zip, 0); // comment
+            writeShort(zip, 0); // disk number
+            writeShort(zip, 0); // internal attributes
+            writeInt(zip, entry.directory ? 0x10 : 0); // external attributes: MS-DOS directory flag
+            writeInt(zip, entry.offset);
+            zip.write(name);
+        }
+        long size = zip.count - start;
+
+        writeInt(zip, END_OF_CENTRAL_DIRECTORY);
+        writeShort(zip, 0);
+        writeShort(zip, 0);
+        writeShort(zip, entries.size());
+        writeShort(zip, entries.size());
+        writeInt(zip, size);
+        writeInt(zip, start);
+        writeShort(zip, 0);
+    }
+
+    private static void writeShort(OutputStream out, int v) throws IOException {
+        out.write(v & 0xff);
+        out.write((v >>> 8) & 0xff);
+    }
+
+    private static void writeInt(OutputStream out, long v) throws IOException {
+        writeShort(out, (int) (v & 0xffff));
+        writeShort(out, (int) ((v >>> 16) & 0xffff));
+    }
+
+    private static long toDosTime(long millis) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(millis);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+                | c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+    }
+
+    private static class Entry {
+        final File file;
+        final String name;
+        final boolean directory;
+        final long dosTime;
+        final CRC32 crc = new CRC32();
+        long size;
+        long compressedSize;
+        long offset;
+        int flags;
+        // the compressed content, when it was compressed ahead
+        byte[] data;
+
+        Entry(File file, String name, boolean directory) {
+            this.file = file;
+            this.name = name;
+            this.directory = directory;
+            this.dosTime = toDosTime(file.lastModified());
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
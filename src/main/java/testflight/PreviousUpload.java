@@ -0,0 +1,50 @@
+package testflight;
+
+import java.io.File;
+import java.io.Serializable;
+
+/**
+ * A file already uploaded to a team, and the links TestFlight answered with.
+ */
+public class PreviousUpload implements Serializable {
+    private final String sha256;
+    private final long size;
+    private final String installUrl;
+    private final String configUrl;
+    private final int buildNumber;
+
+    public PreviousUpload(String sha256, long size, String installUrl, String configUrl, int buildNumber) {
+        this.sha256 = sha256;
+        this.size = size;
+        this.installUrl = installUrl;
+        this.configUrl = configUrl;
+        this.buildNumber = buildNumber;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getInstallUrl() {
+        return installUrl;
+    }
+
+    public String getConfigUrl() {
+        return configUrl;
+    }
+
+    /**
+     * The build that uploaded the file.
+     */
+    public int getBuildNumber() {
+        return buildNumber;
+    }
+
+    UploadResult toResult(File file, String md5) {
+        return new UploadResult(file.getName(), installUrl, configUrl, null, sha256, md5, size, true);
+    }
+}
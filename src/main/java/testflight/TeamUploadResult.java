@@ -0,0 +1,47 @@
+package testflight;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * The outcome of the upload of the files of one team: either the uploaded files, or the failure that stopped the upload.
+ */
+public class TeamUploadResult implements Serializable {
+    final TestflightUploader.UploadRequest request;
+    List<UploadResult> results;
+    Throwable failure;
+    // how long it took to find the files in the workspace
+    long scanMillis;
+
+    TeamUploadResult(TestflightUploader.UploadRequest request) {
+        this.request = request;
+    }
+
+    public List<UploadResult> getResults() {
+        return results;
+    }
+
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public long getScanMillis() {
+        return scanMillis;
+    }
+
+    /**
+     * Returns how long the teams of a batch waited for the workspace to be scanned. They share a single scan: in
+     * parallel they all wait for it, one after the other only the first one does, so the longest wait is its time.
+     */
+    static long getScanMillis(List<TeamUploadResult> teamResults) {
+        long scanMillis = 0;
+        for (TeamUploadResult teamResult : teamResults) {
+            scanMillis = Math.max(scanMillis, teamResult.scanMillis);
+        }
+        return scanMillis;
+    }
+
+    boolean isSuccess() {
+        return failure == null && results != null && results.size() > 0;
+    }
+}
@@ -0,0 +1,154 @@
+package testflight;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import hudson.model.BuildListener;
+import hudson.util.StreamBuildListener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * An upload a build left running in the background when it finished, and its log.
+ * <p/>
+ * The links of the upload are added to the build when it completes.
+ */
+public class TestflightAsyncUploadAction implements Action {
+    private static final Logger LOGGER = Logger.getLogger(TestflightAsyncUploadAction.class.getName());
+    static final String LOG_FILE_NAME = "testflight-upload.log";
+
+    public enum Status {
+        RUNNING, SUCCESS, FAILURE
+    }
+
+    private static ExecutorService executor;
+
+    private final File logFile;
+    private volatile Status status = Status.RUNNING;
+    private transient AbstractBuild<?, ?> build;
+    private transient volatile Future<Boolean> future;
+
+    TestflightAsyncUploadAction(AbstractBuild<?, ?> build) {
+        this(build, LOG_FILE_NAME);
+    }
+
+    protected TestflightAsyncUploadAction(AbstractBuild<?, ?> build, String logFileName) {
+        this.build = build;
+        this.logFile = new File(build.getRootDir(), logFileName);
+    }
+
+    /**
+     * Runs the upload in the background, then saves the build with its outcome.
+     */
+    void start(final Callable<Boolean> upload) {
+        future = getExecutor().submit(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                boolean success = false;
+                try {
+                    success = upload.call();
+                    return success;
+                } finally {
+                    status = success ? Status.SUCCESS : Status.FAILURE;
+                    try {
+                        build.save();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to save " + build, e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Opens the log of the upload, for the upload to write to.
+     */
+    BuildListener openLog() throws IOException {
+        return new StreamBuildListener(new FileOutputStream(logFile, true));
+    }
+
+    /**
+     * Waits for the upload to complete, and returns whether it succeeded.
+     *
+     * @param timeoutMillis how long to wait at most, 0 to wait for as long as it takes
+     */
+    boolean await(long timeoutMillis) throws InterruptedException, TimeoutException {
+        Future<Boolean> f = future;
+        if (f == null) {
+            // done, or interrupted by a restart
+            return status == Status.SUCCESS;
+        }
+        try {
+            return timeoutMillis > 0 ? f.get(timeoutMillis, TimeUnit.MILLISECONDS) : f.get();
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    void writeLogTo(OutputStream out) throws IOException {
+        if (!logFile.exists())
+            return;
+        InputStream in = new FileInputStream(logFile);
+        try {
+            IOUtils.copy(in, out);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Whether the build fails when waiting for the upload and it failed.
+     */
+    boolean isRequired() {
+        return true;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Whether the upload stopped without completing, because Jenkins was restarted.
+     */
+    public boolean isInterrupted() {
+        return status == Status.RUNNING && future == null;
+    }
+
+    public String getLog() throws IOException {
+        return logFile.exists() ? FileUtils.readFileToString(logFile) : "";
+    }
+
+    public String getIconFileName() {
+        return "clipboard.gif";
+    }
+
+    public String getDisplayName() {
+        return Messages.TestflightAsyncUploadAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return "testflightUpload";
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new NamedThreadFactory("Testflight background upload"));
+        }
+        return executor;
+    }
+}
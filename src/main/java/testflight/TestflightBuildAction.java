@@ -7,6 +7,8 @@ public class TestflightBuildAction implements ProminentProjectAction {
     public String iconFileName;
     public String displayName;
     public String urlName;
+    // SHA-256 of the uploaded file, on install links
+    public String sha256;
 
     public TestflightBuildAction() {
     }
@@ -15,6 +17,9 @@ public class TestflightBuildAction implements ProminentProjectAction {
         iconFileName = action.getIconFileName();
         displayName = action.getDisplayName();
         urlName = action.getUrlName();
+        if (action instanceof TestflightBuildAction) {
+            sha256 = ((TestflightBuildAction) action).sha256;
+        }
     }
 
     public String getIconFileName() {
@@ -28,4 +33,8 @@ public class TestflightBuildAction implements ProminentProjectAction {
     public String getUrlName() {
         return urlName;
     }
+
+    public String getSha256() {
+        return sha256;
+    }
 }
@@ -0,0 +1,31 @@
+package testflight;
+
+import hudson.model.AbstractBuild;
+
+/**
+ * The upload of the dSYMs of a build, sent after its files so that testers get the install links sooner.
+ * <p/>
+ * The build doesn't fail when it fails: the files were uploaded, only their crash reports won't be symbolicated.
+ */
+public class TestflightDsymUploadAction extends TestflightAsyncUploadAction {
+    static final String LOG_FILE_NAME = "testflight-dsym-upload.log";
+
+    TestflightDsymUploadAction(AbstractBuild<?, ?> build) {
+        super(build, LOG_FILE_NAME);
+    }
+
+    @Override
+    boolean isRequired() {
+        return false;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.TestflightDsymUploadAction_DisplayName();
+    }
+
+    @Override
+    public String getUrlName() {
+        return "testflightDsymUpload";
+    }
+}
@@ -0,0 +1,69 @@
+package testflight;
+
+import hudson.model.InvisibleAction;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The upload a build started as soon as its files were ready, for the {@link TestflightRecorder} to use its links
+ * instead of uploading the files again.
+ */
+public class TestflightEarlyUploadAction extends InvisibleAction {
+    private static ExecutorService executor;
+
+    private transient volatile Future<List<TeamUploadResult>> future;
+    private transient volatile boolean watching = true;
+
+    void start(Callable<List<TeamUploadResult>> upload) {
+        future = getExecutor().submit(upload);
+    }
+
+    /**
+     * Whether the files are still to be watched for. An upload already started goes on.
+     */
+    boolean isWatching() {
+        return watching;
+    }
+
+    void stopWatching() {
+        watching = false;
+    }
+
+    /**
+     * Stops watching and interrupts the upload, e.g. when the build failed.
+     */
+    void cancel() {
+        watching = false;
+        Future<List<TeamUploadResult>> f = future;
+        if (f != null) {
+            f.cancel(true);
+        }
+    }
+
+    /**
+     * Waits for the upload, and returns its results, or null if the files weren't ready before the build was done
+     * with them or the upload failed.
+     */
+    List<TeamUploadResult> await() throws InterruptedException {
+        Future<List<TeamUploadResult>> f = future;
+        if (f == null || f.isCancelled())
+            return null;
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new NamedThreadFactory("Testflight early upload"));
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,141 @@
+package testflight;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.BuildWrapperDescriptor;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Uploads the files of the {@link TestflightRecorder} of the job as soon as the build is done writing them, while the
+ * build goes on, e.g. with its tests. The recorder then reuses the links of that upload for the files that didn't
+ * change since.
+ * <p/>
+ * The files are uploaded without notifying the team, as the recorder would, so it isn't done for jobs notifying it:
+ * the TestFlight API can only notify the team when uploading.
+ */
+public class TestflightEarlyUploadWrapper extends BuildWrapper {
+    private static final int DEFAULT_QUIET_PERIOD = 10;
+
+    /**
+     * How long in seconds the files must stay unchanged to be uploaded.
+     */
+    private Integer quietPeriod;
+
+    public Integer getQuietPeriod() {
+        return this.quietPeriod;
+    }
+
+    @DataBoundConstructor
+    public TestflightEarlyUploadWrapper(Integer quietPeriod) {
+        this.quietPeriod = quietPeriod;
+    }
+
+    @Override
+    public Environment setUp(AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
+        TestflightRecorder recorder = (TestflightRecorder) build.getProject().getPublishersList().get(TestflightRecorder.class);
+        if (recorder == null) {
+            listener.getLogger().println(Messages.TestflightEarlyUploadWrapper_NoRecorder());
+        } else if (recorder.getNotifyTeam() != null && recorder.getNotifyTeam()) {
+            listener.getLogger().println(Messages.TestflightEarlyUploadWrapper_NotifyingTeam());
+        } else {
+            try {
+                List<TestflightUploader.UploadRequest> urList = recorder.createUploadRequests(build, build.getEnvironment(listener));
+                for (TestflightUploader.UploadRequest ur : urList) {
+                    // the recorder scans the workspace again once the build is over
+                    ur.scanId = null;
+                    // the recorder doesn't send the dSYMs of the files it reuses
+                    ur.deferDsym = false;
+                }
+                TestflightEarlyUploadAction early = new TestflightEarlyUploadAction();
+                build.addAction(early);
+                early.start(new EarlyUpload(early, recorder, build, launcher.getChannel(), build.getWorkspace().getRemote(), urList, listener));
+            } catch (MisconfiguredJobException mje) {
+                // the recorder will report it
+            }
+        }
+
+        return new Environment() {
+            @Override
+            public boolean tearDown(AbstractBuild build, BuildListener listener) throws IOException, InterruptedException {
+                TestflightEarlyUploadAction early = build.getAction(TestflightEarlyUploadAction.class);
+                if (early != null) {
+                    // files written after the build steps are uploaded by the recorder
+                    early.stopWatching();
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Waits for the files of all the teams to stay unchanged for the quiet period, and uploads them.
+     */
+    private class EarlyUpload implements Callable<List<TeamUploadResult>> {
+        private final TestflightEarlyUploadAction early;
+        private final TestflightRecorder recorder;
+        private final AbstractBuild<?, ?> build;
+        private final VirtualChannel channel;
+        private final String workspace;
+        private final List<TestflightUploader.UploadRequest> urList;
+        private final BuildListener listener;
+
+        EarlyUpload(TestflightEarlyUploadAction early, TestflightRecorder recorder, AbstractBuild<?, ?> build, VirtualChannel channel,
+                    String workspace, List<TestflightUploader.UploadRequest> urList, BuildListener listener) {
+            this.early = early;
+            this.recorder = recorder;
+            this.build = build;
+            this.channel = channel;
+            this.workspace = workspace;
+            this.urList = urList;
+            this.listener = listener;
+        }
+
+        public List<TeamUploadResult> call() throws Exception {
+            long quietPeriodMillis = (quietPeriod != null ? quietPeriod : DEFAULT_QUIET_PERIOD) * 1000L;
+            try {
+                ArtifactProbe.Files previous = null;
+                while (true) {
+                    ArtifactProbe.Files current = channel.call(new ArtifactProbe(workspace, urList, previous, listener));
+                    if (current != null && current.equals(previous))
+                        break;
+                    previous = current;
+                    Thread.sleep(quietPeriodMillis);
+                    if (!early.isWatching())
+                        return null;
+                }
+
+                UploadStager.StagedUploads staged = channel.call(new UploadStager(workspace, urList, listener));
+                listener.getLogger().println(Messages.TestflightEarlyUploadWrapper_Uploading());
+                return recorder.uploadStaged(build, channel, staged, listener);
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Throwable t) {
+                listener.getLogger().println(Messages.TestflightEarlyUploadWrapper_Failed(t));
+                return null;
+            }
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends BuildWrapperDescriptor {
+        @Override
+        public boolean isApplicable(AbstractProject<?, ?> item) {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.TestflightEarlyUploadWrapper_DisplayName();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package testflight;
+
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.Credentials;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the HTTP client shared by all the uploads running in this JVM (master or slave).
+ * <p/>
+ * The client uses a pooling connection manager, so consecutive uploads to the same host reuse warm connections
+ * instead of paying for a new DNS lookup, TCP connect and TLS handshake each time.
+ * The client is rebuilt only when the proxy settings change; the previous one is shut down once the uploads still
+ * using it are done.
+ */
+final class TestflightHttpClient {
+    static final int MAX_CONNECTIONS_PER_ROUTE = Integer.getInteger(TestflightHttpClient.class.getName() + ".maxConnectionsPerRoute", 10);
+    static final int MAX_TOTAL_CONNECTIONS = Integer.getInteger(TestflightHttpClient.class.getName() + ".maxTotalConnections", 50);
+    // idle connections older than this are closed before handing out the client
+    static final long IDLE_TIMEOUT_SECONDS = Long.getLong(TestflightHttpClient.class.getName() + ".idleTimeoutSeconds", 60);
+
+    private static Pool current;
+
+    private TestflightHttpClient() {
+    }
+
+    /**
+     * Leases the shared client, configured for the proxy settings of the given request. The lease must be released
+     * once the request is done, so that a client replaced in the meantime can close its connections.
+     */
+    static synchronized Lease acquire(TestflightUploader.UploadRequest ur) {
+        ProxySettings proxySettings = new ProxySettings(ur.proxyHost, ur.proxyPort, ur.proxyUser, ur.proxyPass);
+        if (current == null || !proxySettings.equals(current.proxySettings)) {
+            if (current != null) {
+                // uploads still running on the previous client keep their connections, the pool is shut down once they are done
+                current.retire();
+            }
+            current = new Pool(create(proxySettings), proxySettings);
+        } else {
+            current.client.getConnectionManager().closeIdleConnections(IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        current.leases++;
+        return new Lease(current);
+    }
+
+    /**
+     * Closes the shared client and all its pooled connections, or leaves that to the last running upload.
+     */
+    static synchronized void shutdown() {
+        if (current != null) {
+            current.retire();
+            current = null;
+        }
+    }
+
+    private static DefaultHttpClient create(ProxySettings proxySettings) {
+        // starts from what DefaultHttpClient sets up by itself: HTTP/1.1, its user agent, TCP_NODELAY...
+        HttpParams params = new DefaultHttpClient().getParams();
+        ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        // DefaultHttpClient honors the Keep-Alive header of the responses by default
+        DefaultHttpClient httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemeRegistry), params);
+
+        // Configure the proxy if necessary
+        if (proxySettings.isConfigured()) {
+            Credentials cred = null;
+            if (proxySettings.user != null && !proxySettings.user.isEmpty())
+                cred = new UsernamePasswordCredentials(proxySettings.user, proxySettings.pass);
+
+            httpClient.getCredentialsProvider().setCredentials(new AuthScope(proxySettings.host, proxySettings.port), cred);
+            HttpHost proxy = new HttpHost(proxySettings.host, proxySettings.port);
+            httpClient.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY, proxy);
+        }
+        return httpClient;
+    }
+
+    /**
+     * The use of the shared client by one request.
+     */
+    static final class Lease {
+        private final Pool pool;
+        private boolean released;
+
+        private Lease(Pool pool) {
+            this.pool = pool;
+        }
+
+        DefaultHttpClient getClient() {
+            return pool.client;
+        }
+
+        void release() {
+            synchronized (TestflightHttpClient.class) {
+                if (!released) {
+                    released = true;
+                    pool.leases--;
+                    pool.shutdownIfUnused();
+                }
+            }
+        }
+    }
+
+    // guarded by TestflightHttpClient.class
+    private static class Pool {
+        final DefaultHttpClient client;
+        final ProxySettings proxySettings;
+        int leases;
+        boolean retired;
+
+        Pool(DefaultHttpClient client, ProxySettings proxySettings) {
+            this.client = client;
+            this.proxySettings = proxySettings;
+        }
+
+        void retire() {
+            retired = true;
+            shutdownIfUnused();
+        }
+
+        void shutdownIfUnused() {
+            if (retired && leases == 0) {
+                client.getConnectionManager().shutdown();
+            }
+        }
+    }
+
+    private static class ProxySettings {
+        final String host;
+        final int port;
+        final String user;
+        final String pass;
+
+        ProxySettings(String host, int port, String user, String pass) {
+            this.host = host;
+            this.port = port;
+            this.user = user;
+            this.pass = pass;
+        }
+
+        boolean isConfigured() {
+            return host != null && !host.isEmpty() && port > 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ProxySettings)) return false;
+            ProxySettings that = (ProxySettings) o;
+            return port == that.port && equal(host, that.host) && equal(user, that.user) && equal(pass, that.pass);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (host != null ? host.hashCode() : 0) + port;
+        }
+
+        private static boolean equal(Object o1, Object o2) {
+            return o1 == null ? o2 == null : o1.equals(o2);
+        }
+    }
+}
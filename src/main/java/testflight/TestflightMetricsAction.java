@@ -0,0 +1,82 @@
+package testflight;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.RootAction;
+import hudson.remoting.VirtualChannel;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the {@link UploadMetrics} of the master and of all the online slaves at <code>/testflight-metrics/</code>, in
+ * the Prometheus text format, when enabled in the system configuration.
+ */
+@Extension
+public class TestflightMetricsAction implements RootAction {
+    private static final Logger LOGGER = Logger.getLogger(TestflightMetricsAction.class.getName());
+
+    // the slaves that didn't answer within this time are left out of the page rather than holding up the scrape
+    static final long TIMEOUT_SECONDS = 10;
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        TestflightRecorder.DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(TestflightRecorder.DescriptorImpl.class);
+        return descriptor != null && descriptor.isMetricsEndpoint() ? "testflight-metrics" : null;
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException, InterruptedException {
+        Hudson.getInstance().checkPermission(Hudson.READ);
+        // asks all the nodes first, then collects their answers against a single deadline
+        Map<String, Future<List<UploadMetrics.Snapshot>>> requests = new LinkedHashMap<String, Future<List<UploadMetrics.Snapshot>>>();
+        for (Computer computer : Hudson.getInstance().getComputers()) {
+            VirtualChannel channel = computer.getChannel();
+            if (channel == null)
+                continue;
+            String node = computer.getName().length() > 0 ? computer.getName() : "master";
+            try {
+                requests.put(node, channel.callAsync(new UploadMetrics.SnapshotCallable()));
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to get the upload metrics of " + node, e);
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        Map<String, List<UploadMetrics.Snapshot>> snapshotsByNode = new LinkedHashMap<String, List<UploadMetrics.Snapshot>>();
+        for (Map.Entry<String, Future<List<UploadMetrics.Snapshot>>> request : requests.entrySet()) {
+            String node = request.getKey();
+            try {
+                long timeoutMillis = Math.max(0, deadline - System.currentTimeMillis());
+                snapshotsByNode.put(node, request.getValue().get(timeoutMillis, TimeUnit.MILLISECONDS));
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.FINE, "Failed to get the upload metrics of " + node, e);
+            } catch (TimeoutException e) {
+                LOGGER.log(Level.FINE, "Timed out getting the upload metrics of " + node, e);
+                request.getValue().cancel(true);
+            }
+        }
+        rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        PrintWriter out = rsp.getWriter();
+        UploadMetrics.writePrometheus(out, snapshotsByNode);
+    }
+}
@@ -0,0 +1,14 @@
+package testflight;
+
+import hudson.Plugin;
+
+/**
+ * Releases what the plugin holds for the whole life of Jenkins when Jenkins shuts down.
+ */
+public class TestflightPlugin extends Plugin {
+    @Override
+    public void stop() throws Exception {
+        // the slaves' clients go away with their JVM
+        TestflightHttpClient.shutdown();
+    }
+}
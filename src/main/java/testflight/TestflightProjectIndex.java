@@ -0,0 +1,127 @@
+package testflight;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers, for each project, the links of the most recent successful build that uploaded to TestFlight.
+ * <p/>
+ * The project page shows these links, and is rendered much more often than builds complete: the index is updated
+ * when a build completes, and only built from the build history the first time a project is looked up.
+ */
+public class TestflightProjectIndex {
+    private static final ConcurrentMap<String, LatestUpload> latestUploads = new ConcurrentHashMap<String, LatestUpload>();
+
+    private TestflightProjectIndex() {
+    }
+
+    /**
+     * Returns copies of the Testflight actions of the most recent successful build of the project having some.
+     */
+    public static List<TestflightBuildAction> getLatestUploadActions(AbstractProject<?, ?> project) {
+        LatestUpload latestUpload = latestUploads.get(project.getFullName());
+        if (latestUpload == null) {
+            latestUpload = findLatestUpload(project);
+            LatestUpload concurrent = latestUploads.putIfAbsent(project.getFullName(), latestUpload);
+            if (concurrent != null) {
+                latestUpload = concurrent;
+            }
+        }
+        List<TestflightBuildAction> actions = new ArrayList<TestflightBuildAction>();
+        for (TestflightBuildAction action : latestUpload.actions) {
+            actions.add(new TestflightBuildAction(action));
+        }
+        return actions;
+    }
+
+    private static LatestUpload findLatestUpload(AbstractProject<?, ?> project) {
+        // getBuilds() is sorted from the newest build to the oldest
+        for (AbstractBuild<?, ?> build : project.getBuilds()) {
+            if (isSuccess(build)) {
+                List<TestflightBuildAction> testflightActions = build.getActions(TestflightBuildAction.class);
+                if (testflightActions != null && testflightActions.size() > 0) {
+                    return new LatestUpload(build.getNumber(), testflightActions);
+                }
+            }
+        }
+        return new LatestUpload(0, Collections.<TestflightBuildAction>emptyList());
+    }
+
+    private static boolean isSuccess(AbstractBuild<?, ?> build) {
+        Result result = build.getResult();
+        if (result == null) return false; // currently running builds can have a null result
+        return result.isBetterOrEqualTo(Result.SUCCESS);
+    }
+
+    /**
+     * Indexes the build if it is now the most recent successful one having Testflight actions, and adds its uploads to
+     * the {@link TestflightUploadTrendAction trend}: when it completes, or when an upload it left running in the
+     * background adds its links after that.
+     */
+    static void update(AbstractBuild<?, ?> build) {
+        TestflightUploadTrendAction.update(build);
+        if (!isSuccess(build))
+            return;
+        List<TestflightBuildAction> testflightActions = build.getActions(TestflightBuildAction.class);
+        if (testflightActions == null || testflightActions.size() == 0)
+            return;
+
+        String projectName = build.getProject().getFullName();
+        LatestUpload latestUpload = new LatestUpload(build.getNumber(), testflightActions);
+        while (true) {
+            LatestUpload current = latestUploads.get(projectName);
+            if (current == null) {
+                // not looked up yet, it will be found in the build history
+                return;
+            }
+            if (current.buildNumber > build.getNumber() || latestUploads.replace(projectName, current, latestUpload))
+                return;
+        }
+    }
+
+    private static class LatestUpload {
+        final int buildNumber;
+        final List<TestflightBuildAction> actions;
+
+        LatestUpload(int buildNumber, List<TestflightBuildAction> actions) {
+            this.buildNumber = buildNumber;
+            this.actions = new ArrayList<TestflightBuildAction>(actions);
+        }
+    }
+
+    /**
+     * Keeps the index up to date. The result of a build is only known once it completes, so that's when it is indexed.
+     */
+    @Extension
+    public static class Listener extends RunListener<AbstractBuild> {
+        public Listener() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            update(build);
+        }
+
+        @Override
+        public void onDeleted(AbstractBuild build) {
+            TestflightUploadTrendAction.remove(build);
+            String projectName = build.getProject().getFullName();
+            LatestUpload current = latestUploads.get(projectName);
+            if (current != null && current.buildNumber == build.getNumber()) {
+                // look for the previous one next time
+                latestUploads.remove(projectName, current);
+            }
+        }
+    }
+}
@@ -2,28 +2,37 @@ package testflight;
 
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.ProxyConfiguration;
+import hudson.Util;
 import hudson.model.*;
 import hudson.model.AbstractBuild;
+import hudson.remoting.VirtualChannel;
 import hudson.scm.ChangeLogSet;
 import hudson.scm.ChangeLogSet.Entry;
 import hudson.tasks.*;
 import hudson.util.CopyOnWriteList;
-import hudson.util.RunList;
 import hudson.util.Secret;
-import org.apache.commons.collections.Predicate;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
 import hudson.model.Hudson;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import net.sf.json.JSONObject;
-import org.apache.commons.collections.CollectionUtils;
 import org.kohsuke.stapler.StaplerRequest;
 
 public class TestflightRecorder extends Recorder {
+    private static final int DEFAULT_RETRY_DELAY = 10;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 60;
+    // the server processes the build before answering, give it time
+    private static final int DEFAULT_READ_TIMEOUT = 600;
+    private static final int DEFAULT_STALL_TIMEOUT = 60;
+    private static final int DEFAULT_PROGRESS_INTERVAL = 30;
+
     private String tokenPairName;
 
     public String getTokenPairName() {
@@ -78,6 +87,24 @@ public class TestflightRecorder extends Recorder {
         return this.dsymPath;
     }
 
+    /**
+     * Comma separated list of patterns of files/directories to skip when searching the workspace.
+     */
+    private String excludes;
+
+    public String getExcludes() {
+        return this.excludes;
+    }
+
+    /**
+     * Priority of the uploads of this job when the number of concurrent uploads is limited: HIGH, NORMAL or LOW.
+     */
+    private String uploadPriority;
+
+    public String getUploadPriority() {
+        return this.uploadPriority;
+    }
+
     private String lists;
 
     public String getLists() {
@@ -129,9 +156,108 @@ public class TestflightRecorder extends Recorder {
     public TestflightTeam [] getAdditionalTeams() {
         return this.additionalTeams;
     }
+
+    /**
+     * Maximum number of teams uploaded to at the same time. A value of 1 or less keeps the sequential behavior.
+     */
+    private Integer uploadConcurrency;
+
+    public Integer getUploadConcurrency() {
+        return this.uploadConcurrency;
+    }
+
+    private Integer uploadAttempts;
+
+    public Integer getUploadAttempts() {
+        return this.uploadAttempts;
+    }
+
+    /**
+     * Delay in seconds before the first retry, doubled for each following one.
+     */
+    private Integer retryDelay;
+
+    public Integer getRetryDelay() {
+        return this.retryDelay;
+    }
+
+    /**
+     * Timeouts in seconds for establishing the connection and for each read from it.
+     */
+    private Integer connectTimeout;
+
+    public Integer getConnectTimeout() {
+        return this.connectTimeout;
+    }
+
+    private Integer readTimeout;
+
+    public Integer getReadTimeout() {
+        return this.readTimeout;
+    }
+
+    /**
+     * An upload sending less than minUploadSpeed KB/s during stallTimeout seconds is aborted.
+     */
+    private Integer minUploadSpeed;
+
+    public Integer getMinUploadSpeed() {
+        return this.minUploadSpeed;
+    }
+
+    private Integer stallTimeout;
+
+    public Integer getStallTimeout() {
+        return this.stallTimeout;
+    }
+
+    /**
+     * Interval in seconds between two progress lines in the console, 0 to disable them.
+     */
+    private Integer progressInterval;
+
+    public Integer getProgressInterval() {
+        return this.progressInterval;
+    }
+
+    /**
+     * Bandwidth limit in KB/s of each upload of this job.
+     */
+    private Integer maxUploadRate;
+
+    public Integer getMaxUploadRate() {
+        return this.maxUploadRate;
+    }
+
+    /**
+     * Whether to skip the upload of a file identical to one this job already uploaded to the same team.
+     */
+    private Boolean skipIdenticalUploads;
+
+    public Boolean getSkipIdenticalUploads() {
+        return this.skipIdenticalUploads;
+    }
+
+    /**
+     * Whether to upload in the background and let the build finish at once.
+     */
+    private Boolean asyncUpload;
+
+    public Boolean getAsyncUpload() {
+        return this.asyncUpload;
+    }
+
+    /**
+     * Whether to upload the dSYMs in a second request, in the background, once the install links are available.
+     */
+    private Boolean deferDsymUpload;
+
+    public Boolean getDeferDsymUpload() {
+        return this.deferDsymUpload;
+    }
     
     @DataBoundConstructor
-    public TestflightRecorder(String tokenPairName, Secret apiToken, Secret teamToken, Boolean notifyTeam, String buildNotes, Boolean appendChangelog, String filePath, String dsymPath, String lists, Boolean replace, String proxyHost, String proxyUser, String proxyPass, int proxyPort, Boolean debug, TestflightTeam [] additionalTeams) {
+    public TestflightRecorder(String tokenPairName, Secret apiToken, Secret teamToken, Boolean notifyTeam, String buildNotes, Boolean appendChangelog, String filePath, String dsymPath, String lists, Boolean replace, String proxyHost, String proxyUser, String proxyPass, int proxyPort, Boolean debug, TestflightTeam [] additionalTeams, Integer uploadConcurrency, Integer uploadAttempts, Integer retryDelay, Integer connectTimeout, Integer readTimeout, Integer minUploadSpeed, Integer stallTimeout, Integer progressInterval, String excludes, String uploadPriority, Integer maxUploadRate, Boolean skipIdenticalUploads, Boolean asyncUpload, Boolean deferDsymUpload) {
         this.tokenPairName = tokenPairName;
         this.apiToken = apiToken;
         this.teamToken = teamToken;
@@ -148,6 +274,20 @@ public class TestflightRecorder extends Recorder {
         this.proxyPort = proxyPort;
         this.debug = debug;
         this.additionalTeams = additionalTeams;
+        this.uploadConcurrency = uploadConcurrency;
+        this.uploadAttempts = uploadAttempts;
+        this.retryDelay = retryDelay;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.minUploadSpeed = minUploadSpeed;
+        this.stallTimeout = stallTimeout;
+        this.progressInterval = progressInterval;
+        this.excludes = excludes;
+        this.uploadPriority = uploadPriority;
+        this.maxUploadRate = maxUploadRate;
+        this.skipIdenticalUploads = skipIdenticalUploads;
+        this.asyncUpload = asyncUpload;
+        this.deferDsymUpload = deferDsymUpload;
     }
 
     @Override
@@ -161,8 +301,13 @@ public class TestflightRecorder extends Recorder {
 
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, final BuildListener listener) {
-        if (build.getResult().isWorseOrEqualTo(Result.FAILURE))
+        if (build.getResult().isWorseOrEqualTo(Result.FAILURE)) {
+            TestflightEarlyUploadAction early = build.getAction(TestflightEarlyUploadAction.class);
+            if (early != null) {
+                early.cancel();
+            }
             return false;
+        }
 
         listener.getLogger().println(Messages.TestflightRecorder_InfoUploading());
 
@@ -171,47 +316,300 @@ public class TestflightRecorder extends Recorder {
 
             String workspace = vars.expand("$WORKSPACE");
 
-            List<TestflightUploader.UploadRequest> urList = new ArrayList<TestflightUploader.UploadRequest>();
+            List<TestflightUploader.UploadRequest> urList;
+            try {
+                urList = createUploadRequests(build, vars);
+            } catch (MisconfiguredJobException mje) {
+                listener.getLogger().println(mje.getConfigurationMessage());
+                return false;
+            }
+            shareWorkspaceScan(urList, build);
+            useEarlyUpload(build, urList, listener);
+
+            if (isAsyncUpload())
+                return startAsyncUpload(build, launcher.getChannel(), workspace, urList, listener);
+
+            int concurrency = getEffectiveUploadConcurrency();
+            TestflightRemoteBatchRecorder remoteRecorder = new TestflightRemoteBatchRecorder(workspace, urList, listener, concurrency);
+            UploadScheduler.Ticket ticket = acquireUploadSlots(build, urList, listener);
+            List<TeamUploadResult> teamResults;
+            try {
+                teamResults = launcher.getChannel().call(remoteRecorder);
+            } finally {
+                UploadScheduler.get().release(ticket);
+            }
+
+            boolean success = processTeamResults(build, listener, teamResults);
+            startDsymUploads(build, launcher.getChannel(), workspace, teamResults, listener);
+            if (!success)
+                return false;
+        } catch (Throwable e) {
+            listener.getLogger().println(e);
+            e.printStackTrace(listener.getLogger());
+            return false;
+        }
 
-            for(TestflightTeam team : createDefaultPlusAdditionalTeams()) {
+        return true;
+    }
+
+    /**
+     * Adds the links of the uploaded files to the build, and logs why the others failed. Returns whether all succeeded.
+     */
+    private boolean processTeamResults(AbstractBuild<?, ?> build, BuildListener listener, List<TeamUploadResult> teamResults) {
+        TestflightUploadTimingsAction.record(build, teamResults);
+        boolean success = true;
+        for (TeamUploadResult teamResult : teamResults) {
+            if (teamResult.failure instanceof UploadException) {
+                UploadException ue = (UploadException) teamResult.failure;
+                listener.getLogger().println(Messages.TestflightRecorder_IncorrectResponseCode(ue.getStatusCode()));
+                listener.getLogger().println(ue.getResponseBody());
+                success = false;
+            } else if (teamResult.failure != null) {
+                listener.getLogger().println(teamResult.failure);
+                teamResult.failure.printStackTrace(listener.getLogger());
+                success = false;
+            } else if (teamResult.results.size() == 0) {
+                listener.getLogger().println(Messages.TestflightRecorder_NoUploadedFile(teamResult.request.filePaths));
+                success = false;
+            } else {
+                if (isSkipIdenticalUploads()) {
+                    recordUploads(build, listener, teamResult);
+                }
+                for (UploadResult result : teamResult.results) {
+                    addTestflightLinks(build, listener, result);
+                }
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Copies the files to upload out of the workspace, and uploads them in the background, letting the build finish.
+     */
+    private boolean startAsyncUpload(final AbstractBuild<?, ?> build, final VirtualChannel channel, String workspace,
+                                     List<TestflightUploader.UploadRequest> urList, BuildListener listener) throws Throwable {
+        final UploadStager.StagedUploads staged = channel.call(new UploadStager(workspace, urList, listener));
+        if (!staged.teamsWithoutFiles.isEmpty()) {
+            for (TestflightUploader.UploadRequest ur : staged.teamsWithoutFiles) {
+                listener.getLogger().println(Messages.TestflightRecorder_NoUploadedFile(ur.filePaths));
+            }
+            new FilePath(channel, staged.stagingDir).deleteRecursive();
+            return false;
+        }
+
+        final TestflightAsyncUploadAction upload = new TestflightAsyncUploadAction(build);
+        build.addAction(upload);
+        upload.start(new Callable<Boolean>() {
+            public Boolean call() throws IOException {
+                BuildListener uploadListener = upload.openLog();
                 try {
-                    TestflightUploader.UploadRequest ur = createPartialUploadRequest(team, vars, build);
-                    urList.add(ur);
-                } catch (MisconfiguredJobException mje) {
-                    listener.getLogger().println(mje.getConfigurationMessage());
+                    List<TeamUploadResult> teamResults = uploadStaged(build, channel, staged, uploadListener);
+                    boolean success = processTeamResults(build, uploadListener, teamResults);
+                    // the build may have completed, and been indexed, without the links
+                    TestflightProjectIndex.update(build);
+                    return success;
+                } catch (Exception e) {
+                    e.printStackTrace(uploadListener.getLogger());
                     return false;
+                } finally {
+                    uploadListener.getLogger().close();
+                }
+            }
+        });
+        listener.getLogger().println(Messages.TestflightRecorder_UploadingInBackground(staged.requests.size()));
+        return true;
+    }
+
+    /**
+     * Uploads in the background the dSYMs left for after their files, logging the outcome in their own log.
+     * Their failure doesn't fail the build.
+     */
+    private void startDsymUploads(final AbstractBuild<?, ?> build, final VirtualChannel channel, String workspace,
+                                  List<TeamUploadResult> teamResults, BuildListener listener) {
+        List<TestflightUploader.UploadRequest> dsymRequests = new ArrayList<TestflightUploader.UploadRequest>();
+        // the uploads they replace, in the same order
+        final List<UploadResult> uploaded = new ArrayList<UploadResult>();
+        for (TeamUploadResult teamResult : teamResults) {
+            if (teamResult.results == null)
+                continue;
+            for (UploadResult result : teamResult.results) {
+                if (result.getDeferredDsym() != null) {
+                    dsymRequests.add(result.getDeferredDsym());
+                    uploaded.add(result);
                 }
             }
+        }
+        if (dsymRequests.isEmpty())
+            return;
 
-            for(TestflightUploader.UploadRequest ur : urList) {
-                TestflightRemoteRecorder remoteRecorder = new TestflightRemoteRecorder(workspace, ur, listener);
-    
-                final List<Map> parsedMaps;
-    
+        final UploadStager.StagedUploads staged;
+        try {
+            // the build may be over and its workspace reused before they are sent
+            staged = channel.call(new UploadStager(workspace, dsymRequests, listener));
+        } catch (Throwable t) {
+            listener.getLogger().println(Messages.TestflightRecorder_DsymUploadFailed(t));
+            return;
+        }
+        final TestflightDsymUploadAction upload = new TestflightDsymUploadAction(build);
+        build.addAction(upload);
+        upload.start(new Callable<Boolean>() {
+            public Boolean call() throws IOException {
+                BuildListener uploadListener = upload.openLog();
                 try {
-                    Object result = launcher.getChannel().call(remoteRecorder);
-                    parsedMaps = (List<Map>) result;
-                } catch (UploadException ue) {
-                    listener.getLogger().println(Messages.TestflightRecorder_IncorrectResponseCode(ue.getStatusCode()));
-                    listener.getLogger().println(ue.getResponseBody());
+                    boolean success = true;
+                    // one team result per request, each request being for a single file
+                    List<TeamUploadResult> teamResults = uploadStaged(build, channel, staged, uploadListener);
+                    for (int i = 0; i < teamResults.size(); i++) {
+                        TeamUploadResult teamResult = teamResults.get(i);
+                        if (teamResult.isSuccess()) {
+                            UploadResult result = teamResult.results.get(0);
+                            uploadListener.getLogger().println(Messages.TestflightRecorder_DsymUploaded(result.getFileName()));
+                            updateTestflightLinks(build, uploadListener, teamResult, uploaded.get(i));
+                        } else {
+                            uploadListener.getLogger().println(Messages.TestflightRecorder_DsymUploadFailed(teamResult.failure));
+                            success = false;
+                        }
+                    }
+                    return success;
+                } catch (Exception e) {
+                    e.printStackTrace(uploadListener.getLogger());
                     return false;
+                } finally {
+                    uploadListener.getLogger().close();
                 }
-    
-                if (parsedMaps.size() == 0) {
-                    listener.getLogger().println(Messages.TestflightRecorder_NoUploadedFile(ur.filePaths));
-                    return false;
+            }
+        });
+        listener.getLogger().println(Messages.TestflightRecorder_UploadingDsyms(staged.requests.size()));
+    }
+
+    /**
+     * Points the links of the build at those of the upload that replaced its file with the dSYM, should TestFlight
+     * have given it new ones.
+     */
+    private void updateTestflightLinks(AbstractBuild<?, ?> build, BuildListener listener, TeamUploadResult replacement, UploadResult uploaded) {
+        UploadResult result = replacement.results.get(0);
+        boolean changed = updateTestflightLink(build, listener, uploaded.getInstallUrl(), result.getInstallUrl());
+        changed |= updateTestflightLink(build, listener, uploaded.getConfigUrl(), result.getConfigUrl());
+        if (changed && isSkipIdenticalUploads()) {
+            // replaces the links recorded for the file
+            recordUploads(build, listener, replacement);
+        }
+    }
+
+    private boolean updateTestflightLink(AbstractBuild<?, ?> build, BuildListener listener, String url, String newUrl) {
+        if (newUrl == null || newUrl.equals(url))
+            return false;
+        listener.getLogger().println(Messages.TestflightRecorder_LinkReplaced(url, newUrl));
+        // the project index shares these actions, and the build is saved once the upload is over
+        for (TestflightBuildAction action : build.getActions(TestflightBuildAction.class)) {
+            if (StringUtils.equals(action.urlName, url)) {
+                action.urlName = newUrl;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Uploads files staged out of the workspace, within the global upload limits, and deletes them.
+     */
+    List<TeamUploadResult> uploadStaged(AbstractBuild<?, ?> build, VirtualChannel channel, UploadStager.StagedUploads staged,
+                                        BuildListener listener) throws IOException, InterruptedException {
+        int concurrency = getEffectiveUploadConcurrency();
+        UploadScheduler.Ticket ticket = acquireUploadSlots(build, staged.requests, listener);
+        try {
+            return channel.call(new TestflightRemoteBatchRecorder(staged.stagingDir, staged.requests, listener, concurrency));
+        } finally {
+            UploadScheduler.get().release(ticket);
+            new FilePath(channel, staged.stagingDir).deleteRecursive();
+        }
+    }
+
+    /**
+     * Lets the files the build already uploaded with {@link TestflightEarlyUploadWrapper} be skipped, reusing their links.
+     */
+    private void useEarlyUpload(AbstractBuild<?, ?> build, List<TestflightUploader.UploadRequest> urList, BuildListener listener) throws InterruptedException {
+        TestflightEarlyUploadAction early = build.getAction(TestflightEarlyUploadAction.class);
+        if (early == null)
+            return;
+        early.stopWatching();
+        List<TeamUploadResult> teamResults = early.await();
+        if (teamResults == null) {
+            listener.getLogger().println(Messages.TestflightRecorder_EarlyUploadNotDone());
+            return;
+        }
+        for (TeamUploadResult teamResult : teamResults) {
+            if (!teamResult.isSuccess())
+                continue;
+            if (isSkipIdenticalUploads()) {
+                recordUploads(build, listener, teamResult);
+            }
+            for (TestflightUploader.UploadRequest ur : urList) {
+                if (!ur.teamToken.equals(teamResult.request.teamToken))
+                    continue;
+                if (ur.previousUploads == null) {
+                    ur.previousUploads = new ArrayList<PreviousUpload>();
                 }
-                for (Map parsedMap: parsedMaps) {
-                    addTestflightLinks(build, listener, parsedMap);
+                for (UploadResult result : teamResult.results) {
+                    if (result.getSha256() != null) {
+                        ur.previousUploads.add(0, new PreviousUpload(result.getSha256(), result.getSize(),
+                                result.getInstallUrl(), result.getConfigUrl(), build.getNumber()));
+                    }
                 }
             }
-        } catch (Throwable e) {
+        }
+    }
+
+    /**
+     * Makes the teams searching the workspace for their files share a single scan, done with the patterns of all of them.
+     */
+    private void shareWorkspaceScan(List<TestflightUploader.UploadRequest> urList, AbstractBuild<?, ?> build) {
+        Set<String> scanPatterns = new LinkedHashSet<String>();
+        for (TestflightUploader.UploadRequest ur : urList) {
+            scanPatterns.add(StringUtils.isNotEmpty(ur.filePaths) ? ur.filePaths : TestflightRemoteRecorder.DEFAULT_FILE_PATTERNS);
+        }
+        for (TestflightUploader.UploadRequest ur : urList) {
+            ur.scanPatterns = StringUtils.join(scanPatterns, ",");
+            ur.scanId = build.getProject().getFullName() + "#" + build.getNumber();
+        }
+    }
+
+    /**
+     * Waits for the global limits on concurrent uploads to allow ours to start.
+     */
+    UploadScheduler.Ticket acquireUploadSlots(AbstractBuild<?, ?> build, List<TestflightUploader.UploadRequest> requests, BuildListener listener) throws InterruptedException {
+        DescriptorImpl descriptor = getDescriptor();
+        UploadScheduler.Priority priority = UploadScheduler.Priority.parse(uploadPriority);
+        int uploads = Math.min(getEffectiveUploadConcurrency(), requests.size());
+        UploadScheduler.Ticket ticket = UploadScheduler.get().acquire(build.getBuiltOnStr(), uploads, priority,
+                descriptor.getMaxConcurrentUploads(), descriptor.getMaxConcurrentUploadsPerNode());
+        for (TestflightUploader.UploadRequest ur : requests) {
+            UploadMetrics.forTokenPair(ur.tokenPairName).waitedForSlots(ticket.getWaitMillis());
+        }
+        if (descriptor.getMaxConcurrentUploads() > 0 || descriptor.getMaxConcurrentUploadsPerNode() > 0) {
+            listener.getLogger().println(Messages.TestflightRecorder_UploadQueueWait(priority, ticket.getWaitMillis() / 1000));
+        }
+        return ticket;
+    }
+
+    boolean isAsyncUpload() {
+        return asyncUpload != null && asyncUpload;
+    }
+
+    private boolean isSkipIdenticalUploads() {
+        return skipIdenticalUploads != null && skipIdenticalUploads;
+    }
+
+    private void recordUploads(AbstractBuild<?, ?> build, BuildListener listener, TeamUploadResult teamResult) {
+        try {
+            UploadHistory.record(build.getProject(), build.getNumber(), teamResult.request.teamToken, teamResult.results);
+        } catch (IOException e) {
+            // the next builds will upload these files again
             listener.getLogger().println(e);
-            e.printStackTrace(listener.getLogger());
-            return false;
         }
+    }
 
-        return true;
+    int getEffectiveUploadConcurrency() {
+        return uploadConcurrency != null ? uploadConcurrency : 1;
     }
 
     private List<TestflightTeam> createDefaultPlusAdditionalTeams() {
@@ -224,23 +622,36 @@ public class TestflightRecorder extends Recorder {
         return allTeams;
     }
 
-    private void addTestflightLinks(AbstractBuild<?, ?> build, BuildListener listener, Map parsedMap) {
+    private void addTestflightLinks(AbstractBuild<?, ?> build, BuildListener listener, UploadResult result) {
         TestflightBuildAction installAction = new TestflightBuildAction();
-        String installUrl = (String) parsedMap.get("install_url");
+        String installUrl = result.getInstallUrl();
         installAction.displayName = Messages.TestflightRecorder_InstallLinkText();
         installAction.iconFileName = "package.gif";
         installAction.urlName = installUrl;
+        String sha256 = result.getSha256();
+        installAction.sha256 = sha256;
         build.addAction(installAction);
         listener.getLogger().println(Messages.TestflightRecorder_InfoInstallLink(installUrl));
+        if (sha256 != null) {
+            listener.getLogger().println(Messages.TestflightRecorder_InfoSha256(result.getFileName(), sha256));
+        }
 
         TestflightBuildAction configureAction = new TestflightBuildAction();
-        String configUrl = (String) parsedMap.get("config_url");
+        String configUrl = result.getConfigUrl();
         configureAction.displayName = Messages.TestflightRecorder_ConfigurationLinkText();
         configureAction.iconFileName = "gear2.gif";
         configureAction.urlName = configUrl;
         build.addAction(configureAction);
         listener.getLogger().println(Messages.TestflightRecorder_InfoConfigurationLink(configUrl));
 
+        if (result.getMd5() != null) {
+            try {
+                recordFingerprint(build, result.getFileName(), result.getMd5());
+            } catch (IOException e) {
+                listener.getLogger().println(e);
+            }
+        }
+
         build.addAction(new EnvAction());
 
         // Add info about the selected build into the environment
@@ -248,7 +659,38 @@ public class TestflightRecorder extends Recorder {
         if (envData != null) {
             envData.add("TESTFLIGHT_INSTALL_URL", installUrl);
             envData.add("TESTFLIGHT_CONFIG_URL", configUrl);
+            if (sha256 != null) {
+                envData.add("TESTFLIGHT_SHA256", sha256);
+            }
+        }
+    }
+
+    /**
+     * Fingerprints the uploaded file as produced by the build, as the fingerprint publisher would if it archived it.
+     */
+    private void recordFingerprint(AbstractBuild<?, ?> build, String fileName, String md5) throws IOException {
+        Fingerprint fingerprint = Hudson.getInstance().getFingerprintMap().getOrCreate(build, fileName, md5);
+        fingerprint.add(build);
+
+        Map<String, String> records = new HashMap<String, String>();
+        Fingerprinter.FingerprintAction fingerprintAction = build.getAction(Fingerprinter.FingerprintAction.class);
+        if (fingerprintAction != null) {
+            records.putAll(fingerprintAction.getRecords());
+            build.getActions().remove(fingerprintAction);
+        }
+        records.put(fileName, md5);
+        build.addAction(new Fingerprinter.FingerprintAction(build, records));
+    }
+
+    /**
+     * Creates the requests of the teams, without the files to upload, which are found in the workspace.
+     */
+    List<TestflightUploader.UploadRequest> createUploadRequests(AbstractBuild<?, ?> build, EnvVars vars) {
+        List<TestflightUploader.UploadRequest> urList = new ArrayList<TestflightUploader.UploadRequest>();
+        for (TestflightTeam team : createDefaultPlusAdditionalTeams()) {
+            urList.add(createPartialUploadRequest(team, vars, build));
         }
+        return urList;
     }
 
     private TestflightUploader.UploadRequest createPartialUploadRequest(TestflightTeam team, EnvVars vars, AbstractBuild<?, ?> build) {
@@ -256,9 +698,11 @@ public class TestflightRecorder extends Recorder {
         TokenPair tokenPair = getTokenPair(team.getTokenPairName());
         ur.filePaths = vars.expand(StringUtils.trim(team.getFilePath()));
         ur.dsymPath = vars.expand(StringUtils.trim(team.getDsymPath()));
+        ur.tokenPairName = tokenPair.getTokenPairName();
         ur.apiToken = vars.expand(Secret.toString(tokenPair.getApiToken()));
         ur.buildNotes = createBuildNotes(vars.expand(buildNotes), build.getChangeSet());
         ur.lists = vars.expand(lists);
+        ur.excludes = vars.expand(StringUtils.trim(excludes));
         ur.notifyTeam = notifyTeam;
         ProxyConfiguration proxy = getProxy();
         ur.proxyHost = proxy.name;
@@ -267,7 +711,23 @@ public class TestflightRecorder extends Recorder {
         ur.proxyUser = proxy.getUserName();
         ur.replace = replace;
         ur.teamToken = vars.expand(Secret.toString(tokenPair.getTeamToken()));
+        ur.endpoint = StringUtils.isNotBlank(tokenPair.getEndpoint()) ? tokenPair.getEndpoint() : getDescriptor().getEndpoint();
         ur.debug = debug;
+        ur.maxAttempts = uploadAttempts != null ? uploadAttempts : 1;
+        ur.retryDelayMillis = (retryDelay != null ? retryDelay : DEFAULT_RETRY_DELAY) * 1000L;
+        ur.connectTimeoutMillis = (connectTimeout != null ? connectTimeout : DEFAULT_CONNECT_TIMEOUT) * 1000;
+        ur.readTimeoutMillis = (readTimeout != null ? readTimeout : DEFAULT_READ_TIMEOUT) * 1000;
+        ur.minBytesPerSecond = minUploadSpeed != null ? minUploadSpeed * 1024L : 0;
+        ur.stallPeriodSeconds = stallTimeout != null ? stallTimeout : DEFAULT_STALL_TIMEOUT;
+        ur.progressIntervalSeconds = progressInterval != null ? progressInterval : DEFAULT_PROGRESS_INTERVAL;
+        // in the background, all the files are already sent off the critical path
+        ur.deferDsym = deferDsymUpload != null && deferDsymUpload && !isAsyncUpload();
+        ur.maxBytesPerSecond = maxUploadRate != null ? maxUploadRate * 1024L : 0;
+        ur.nodeMaxBytesPerSecond = getDescriptor().getMaxNodeUploadRate() * 1024L;
+        ur.tokenCheckTtlMillis = getDescriptor().getTokenCheckTtl() * 60000L;
+        if (isSkipIdenticalUploads()) {
+            ur.previousUploads = UploadHistory.getPreviousUploads(build.getProject(), ur.teamToken);
+        }
         return ur;
     }
 
@@ -286,57 +746,35 @@ public class TestflightRecorder extends Recorder {
 
     // Append the changelog if we should and can
     private String createBuildNotes(String buildNotes, final ChangeLogSet<?> changeSet) {
-        if (appendChangelog) {
-            StringBuilder stringBuilder = new StringBuilder();
+        return appendChangelog ? appendChangelog(buildNotes, changeSet) : buildNotes;
+    }
 
-            // Show the build notes first
-            stringBuilder.append(buildNotes);
+    static String appendChangelog(String buildNotes, ChangeLogSet<?> changeSet) {
+        StringBuilder stringBuilder = new StringBuilder();
 
-            // Then append the changelog
-            stringBuilder.append("\n\n")
-                    .append(changeSet.isEmptySet() ? Messages.TestflightRecorder_EmptyChangeSet() : Messages.TestflightRecorder_Changelog())
-                    .append("\n");
+        // Show the build notes first
+        stringBuilder.append(buildNotes);
 
-            int entryNumber = 1;
+        // Then append the changelog
+        stringBuilder.append("\n\n")
+                .append(changeSet.isEmptySet() ? Messages.TestflightRecorder_EmptyChangeSet() : Messages.TestflightRecorder_Changelog())
+                .append("\n");
 
-            for (Entry entry : changeSet) {
-                stringBuilder.append("\n").append(entryNumber).append(". ");
-                stringBuilder.append(entry.getMsg()).append(" \u2014 ").append(entry.getAuthor());
+        int entryNumber = 1;
 
-                entryNumber++;
-            }
-            buildNotes = stringBuilder.toString();
+        for (Entry entry : changeSet) {
+            stringBuilder.append("\n").append(entryNumber).append(". ");
+            stringBuilder.append(entry.getMsg()).append(" \u2014 ").append(entry.getAuthor());
+
+            entryNumber++;
         }
-        return buildNotes;
+        return stringBuilder.toString();
     }
 
     @Override
     public Collection<? extends Action> getProjectActions(AbstractProject<?, ?> project) {
-        ArrayList<TestflightBuildAction> actions = new ArrayList<TestflightBuildAction>();
-        RunList<? extends AbstractBuild<?, ?>> builds = project.getBuilds();
-
-        Collection predicated = CollectionUtils.select(builds, new Predicate() {
-            public boolean evaluate(Object o) {
-                Result result = ((AbstractBuild<?, ?>) o).getResult();
-                if (result == null) return false; // currently running builds can have a null result
-                return result.isBetterOrEqualTo(Result.SUCCESS);
-            }
-        });
-
-        ArrayList<AbstractBuild<?, ?>> filteredList = new ArrayList<AbstractBuild<?, ?>>(predicated);
-
-
-        Collections.reverse(filteredList);
-        for (AbstractBuild<?, ?> build : filteredList) {
-            List<TestflightBuildAction> testflightActions = build.getActions(TestflightBuildAction.class);
-            if (testflightActions != null && testflightActions.size() > 0) {
-                for (TestflightBuildAction action : testflightActions) {
-                    actions.add(new TestflightBuildAction(action));
-                }
-                break;
-            }
-        }
-
+        List<Action> actions = new ArrayList<Action>(TestflightProjectIndex.getLatestUploadActions(project));
+        actions.add(new TestflightUploadTrendAction(project));
         return actions;
     }
 
@@ -357,6 +795,32 @@ public class TestflightRecorder extends Recorder {
     public static final class DescriptorImpl extends BuildStepDescriptor<Publisher> {
         private final CopyOnWriteList<TokenPair> tokenPairs = new CopyOnWriteList<TokenPair>();
 
+        /**
+         * Limits of the number of uploads running at the same time, 0 for none.
+         */
+        private int maxConcurrentUploads;
+        private int maxConcurrentUploadsPerNode;
+
+        /**
+         * Bandwidth limit in KB/s shared by all the uploads running on a node, 0 for none.
+         */
+        private int maxNodeUploadRate;
+
+        /**
+         * How long in minutes the check of a pair of tokens before uploading is trusted, 0 not to check them.
+         */
+        private int tokenCheckTtl;
+
+        /**
+         * The URL to upload to with the token pairs not having their own, the TestFlight API if empty.
+         */
+        private String endpoint;
+
+        /**
+         * Whether to serve the upload metrics of all the nodes at /testflight-metrics/.
+         */
+        private boolean metricsEndpoint;
+
         public DescriptorImpl() {
             super(TestflightRecorder.class);
             load();
@@ -370,6 +834,12 @@ public class TestflightRecorder extends Recorder {
         @Override
         public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
             tokenPairs.replaceBy(req.bindParametersToList(TokenPair.class, "tokenPair."));
+            maxConcurrentUploads = Math.max(0, json.optInt("maxConcurrentUploads", 0));
+            maxConcurrentUploadsPerNode = Math.max(0, json.optInt("maxConcurrentUploadsPerNode", 0));
+            maxNodeUploadRate = Math.max(0, json.optInt("maxNodeUploadRate", 0));
+            tokenCheckTtl = Math.max(0, json.optInt("tokenCheckTtl", 0));
+            endpoint = Util.fixEmptyAndTrim(json.optString("endpoint"));
+            metricsEndpoint = json.optBoolean("metricsEndpoint", false);
             save();
             return true;
         }
@@ -384,6 +854,34 @@ public class TestflightRecorder extends Recorder {
         public Iterable<TokenPair> getTokenPairs() {
             return tokenPairs;
         }
+
+        void setTokenPairs(Collection<TokenPair> tokenPairs) {
+            this.tokenPairs.replaceBy(tokenPairs);
+        }
+
+        public int getMaxConcurrentUploads() {
+            return maxConcurrentUploads;
+        }
+
+        public int getMaxConcurrentUploadsPerNode() {
+            return maxConcurrentUploadsPerNode;
+        }
+
+        public int getMaxNodeUploadRate() {
+            return maxNodeUploadRate;
+        }
+
+        public int getTokenCheckTtl() {
+            return tokenCheckTtl;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public boolean isMetricsEndpoint() {
+            return metricsEndpoint;
+        }
     }
 
     private static class EnvAction implements EnvironmentContributingAction {
@@ -0,0 +1,84 @@
+package testflight;
+
+import hudson.model.BuildListener;
+import hudson.remoting.Callable;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Uploads the files of all the teams of a build, in a single call to the master or slave holding the workspace.
+ * <p/>
+ * Returns one {@link TeamUploadResult} per request, in the order of the requests.
+ * In sequential mode the uploads stop at the first failing team, in parallel mode all the teams are uploaded to
+ * and every failure is collected.
+ */
+public class TestflightRemoteBatchRecorder implements Callable<List<TeamUploadResult>, InterruptedException>, Serializable {
+    final private String remoteWorkspace;
+    final private List<TestflightUploader.UploadRequest> uploadRequests;
+    final private BuildListener listener;
+    final private int concurrency;
+
+    public TestflightRemoteBatchRecorder(String remoteWorkspace, List<TestflightUploader.UploadRequest> uploadRequests, BuildListener listener, int concurrency) {
+        this.remoteWorkspace = remoteWorkspace;
+        this.uploadRequests = uploadRequests;
+        this.listener = listener;
+        this.concurrency = concurrency;
+    }
+
+    public List<TeamUploadResult> call() throws InterruptedException {
+        List<TeamUploadResult> results = new ArrayList<TeamUploadResult>();
+        int threads = Math.min(concurrency, uploadRequests.size());
+
+        if (threads <= 1) {
+            for (TestflightUploader.UploadRequest ur : uploadRequests) {
+                TeamUploadResult result = uploadToTeam(ur);
+                results.add(result);
+                if (!result.isSuccess())
+                    break;
+            }
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("Testflight team upload"));
+        try {
+            List<Future<TeamUploadResult>> futures = new ArrayList<Future<TeamUploadResult>>();
+            for (final TestflightUploader.UploadRequest ur : uploadRequests) {
+                futures.add(executor.submit(new java.util.concurrent.Callable<TeamUploadResult>() {
+                    public TeamUploadResult call() {
+                        return uploadToTeam(ur);
+                    }
+                }));
+            }
+            for (Future<TeamUploadResult> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    // uploadToTeam() catches everything, this can't happen
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            // interrupts the remaining uploads if we were aborted
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    private TeamUploadResult uploadToTeam(TestflightUploader.UploadRequest ur) {
+        TeamUploadResult result = new TeamUploadResult(ur);
+        TestflightRemoteRecorder recorder = new TestflightRemoteRecorder(remoteWorkspace, ur, listener);
+        try {
+            result.results = recorder.call();
+        } catch (Throwable t) {
+            result.failure = t;
+        }
+        result.scanMillis = recorder.getScanMillis();
+        return result;
+    }
+}
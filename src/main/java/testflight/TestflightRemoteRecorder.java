@@ -2,20 +2,18 @@ package testflight;
 
 import hudson.model.BuildListener;
 import hudson.remoting.Callable;
-import hudson.Util;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 
 import org.apache.commons.lang.StringUtils;
-import org.apache.tools.ant.types.FileSet;
 import org.apache.commons.io.FilenameUtils;
 
 /**
@@ -23,10 +21,14 @@ import org.apache.commons.io.FilenameUtils;
  * <p/>
  * When the ipa/apk file or optional dsym file are not specified, this class first tries to resolve their paths, searching them inside the workspace.
  */
-public class TestflightRemoteRecorder implements Callable<Object, Throwable>, Serializable {
+public class TestflightRemoteRecorder implements Callable<List<UploadResult>, Throwable>, Serializable {
+    static final String DEFAULT_FILE_PATTERNS = "**/*.ipa, **/*.apk";
+
     final private String remoteWorkspace;
     final private TestflightUploader.UploadRequest uploadRequest;
     final private BuildListener listener;
+    private transient ArtifactScanner.ScanResult scanResult;
+    private transient long scanMillis;
 
     public TestflightRemoteRecorder(String remoteWorkspace, TestflightUploader.UploadRequest uploadRequest, BuildListener listener) {
         this.remoteWorkspace = remoteWorkspace;
@@ -34,50 +36,147 @@ public class TestflightRemoteRecorder implements Callable<Object, Throwable>, Se
         this.listener = listener;
     }
 
-    public Object call() throws Throwable {
+    public List<UploadResult> call() throws Throwable {
         TestflightUploader uploader = new TestflightUploader();
-        if (uploadRequest.debug != null && uploadRequest.debug) {
-            uploader.setLogger(new TestflightUploader.Logger() {
-                public void logDebug(String message) {
+        final boolean debug = uploadRequest.debug != null && uploadRequest.debug;
+        uploader.setLogger(new TestflightUploader.Logger() {
+            public void logDebug(String message) {
+                if (debug) {
                     listener.getLogger().println(message);
                 }
-            });
-        }
+            }
+
+            public void logInfo(String message) {
+                listener.getLogger().println(message);
+            }
+        });
         return uploadWith(uploader);
     }
 
-    List<Map> uploadWith(TestflightUploader uploader) throws Throwable {
-        List<Map> results = new ArrayList<Map>();
-
-        Collection<File> ipaOrApkFiles = findIpaOrApkFiles(uploadRequest.filePaths);
-        for (File ipaOrApkFile : ipaOrApkFiles) {
-            HashMap result = new HashMap();
-
-            TestflightUploader.UploadRequest ur = TestflightUploader.UploadRequest.copy(uploadRequest);
-            boolean isIpa = ipaOrApkFile.getName().endsWith(".ipa");
-            ur.file = ipaOrApkFile;
-            if (isIpa) {
-                ur.dsymFile = identifyDsym(ur.dsymPath, ipaOrApkFile.toString());
-            }
+    List<UploadResult> uploadWith(TestflightUploader uploader) throws Throwable {
+        List<UploadResult> results = new ArrayList<UploadResult>();
 
+        for (TestflightUploader.UploadRequest ur : resolveFiles()) {
+            boolean isIpa = ur.file.getName().endsWith(".ipa");
             listener.getLogger().println("File: " + ur.file);
             if (isIpa) {
                 listener.getLogger().println("DSYM: " + ur.dsymFile);
             }
 
+            PreviousUpload previousUpload = findPreviousUpload(ur);
+            if (previousUpload != null) {
+                listener.getLogger().println(Messages.TestflightRemoteRecorder_IdenticalUpload(ur.file.getName(), previousUpload.getBuildNumber()));
+                // the file was just hashed to find it
+                results.add(previousUpload.toResult(ur.file, ArtifactDigests.digests(ur.file).getMd5()));
+                continue;
+            }
+            TestflightUploader.UploadRequest deferredDsym = null;
+            if (ur.deferDsym && ur.dsymFile != null) {
+                // the API can't take a dSYM alone: it comes later with the ipa again, replacing the build quietly
+                deferredDsym = TestflightUploader.UploadRequest.copy(ur);
+                deferredDsym.deferDsym = false;
+                deferredDsym.previousUploads = null;
+                deferredDsym.replace = true;
+                deferredDsym.notifyTeam = false;
+                ur.dsymFile = null;
+                listener.getLogger().println(Messages.TestflightRemoteRecorder_DsymDeferred(deferredDsym.dsymFile.getName()));
+            }
+
             long startTime = System.currentTimeMillis();
-            result.putAll(uploader.upload(ur));
+            Map response = uploader.upload(ur);
             long time = System.currentTimeMillis() - startTime;
 
-            float speed = computeSpeed(ur, time);
+            UploadTimings timings = ur.timings;
+            float speed;
+            if (timings != null) {
+                timings.dsymMillis = ur.dsymMillis;
+                speed = timings.getBodySpeed();
+                listener.getLogger().println(Messages.TestflightRemoteRecorder_UploadTimings(timings.getConnectMillis(), timings.getBodyMillis(), timings.getResponseMillis()));
+            } else {
+                speed = computeSpeed(ur, time);
+            }
             listener.getLogger().println(Messages.TestflightRemoteRecorder_UploadSpeed(prettySpeed(speed)));
 
+            UploadResult result = UploadResult.fromResponse(ur.file, response != null ? response : new HashMap(), timings, getDigests(ur.file));
+            result.deferredDsym = deferredDsym;
             results.add(result);
         }
 
         return results;
     }
 
+    /**
+     * Finds the files to upload, and returns a copy of the request for each of them, with its dSYM for an ipa.
+     */
+    List<TestflightUploader.UploadRequest> resolveFiles() throws IOException, InterruptedException {
+        List<TestflightUploader.UploadRequest> requests = new ArrayList<TestflightUploader.UploadRequest>();
+        long scanStartMillis = System.currentTimeMillis();
+        Collection<File> ipaOrApkFiles = findIpaOrApkFiles(uploadRequest.filePaths);
+        scanMillis = System.currentTimeMillis() - scanStartMillis;
+        for (File ipaOrApkFile : ipaOrApkFiles) {
+            TestflightUploader.UploadRequest ur = TestflightUploader.UploadRequest.copy(uploadRequest);
+            ur.file = ipaOrApkFile;
+            if (ipaOrApkFile.getName().endsWith(".ipa")) {
+                long dsymStartMillis = System.currentTimeMillis();
+                ur.dsymFile = identifyDsym(ur.dsymPath, ipaOrApkFile.toString());
+                ur.dsymMillis = System.currentTimeMillis() - dsymStartMillis;
+            }
+            requests.add(ur);
+        }
+        return requests;
+    }
+
+    /**
+     * Returns how long it took to find the files in the workspace, once for all of them.
+     */
+    long getScanMillis() {
+        return scanMillis;
+    }
+
+    /**
+     * Makes the search for the files use a scan of the workspace already done with the scan patterns of the request.
+     */
+    void useScan(ArtifactScanner.ScanResult scan) {
+        this.scanResult = scan;
+    }
+
+    /**
+     * Returns the scan of the workspace the files were searched in, or null if it wasn't scanned.
+     */
+    ArtifactScanner.ScanResult getScan() {
+        return scanResult;
+    }
+
+    /* returns the upload of a file identical to the one of the request, if the team already got one */
+    private PreviousUpload findPreviousUpload(TestflightUploader.UploadRequest ur) throws IOException {
+        if (ur.previousUploads == null)
+            return null;
+        long size = ur.file.length();
+        String sha256 = null;
+        for (PreviousUpload previousUpload : ur.previousUploads) {
+            // only read the file if an upload of the same size could match it
+            if (previousUpload.getSize() != size)
+                continue;
+            if (sha256 == null) {
+                sha256 = ArtifactDigests.sha256(ur.file);
+            }
+            if (sha256.equals(previousUpload.getSha256()))
+                return previousUpload;
+        }
+        return null;
+    }
+
+    // usually computed while the file was sent, the file is only read again if it wasn't
+    private ArtifactDigests.Digests getDigests(File file) {
+        try {
+            return ArtifactDigests.digests(file);
+        } catch (IOException e) {
+            // the file just won't be fingerprinted nor recognized next time
+            listener.getLogger().println(e);
+            return null;
+        }
+    }
+
     // return the speed in bits per second
     private float computeSpeed(TestflightUploader.UploadRequest request, long uploadTimeMillis) {
         if (uploadTimeMillis == 0) {
@@ -116,36 +215,48 @@ public class TestflightRemoteRecorder implements Callable<Object, Throwable>, Se
         } else {
             String fileName = FilenameUtils.removeExtension(ipaName);
             File f = new File(fileName + "-dSYM.zip");
-            if (f.exists()) {
+            if (dsymExists(f)) {
                 dsymFile = f;
             } else {
                 f = new File(fileName + ".dSYM.zip");
-                if (f.exists()) {
+                if (dsymExists(f)) {
                     dsymFile = f;
-                } else
-                    dsymFile = null;
+                } else {
+                    // the unzipped dSYM, as produced by Xcode next to the .app
+                    f = new File(fileName + ".app.dSYM");
+                    if (dsymExists(f) && f.isDirectory()) {
+                        dsymFile = f;
+                    } else
+                        dsymFile = null;
+                }
             }
         }
         return dsymFile;
     }
 
+    // the workspace scan already found the dSYMs next to the files it found
+    private boolean dsymExists(File f) {
+        if (scanResult != null) {
+            return scanResult.getDsym(f) != null;
+        }
+        return f.exists();
+    }
+
     /* if a specified filePath is specified, return it, otherwise find recursively all ipa/apk files in the remoteworkspace */
-    private Collection<File> findIpaOrApkFiles(String filePaths) {
+    private Collection<File> findIpaOrApkFiles(String filePaths) throws IOException, InterruptedException {
         if (StringUtils.isNotEmpty(filePaths)) {
             File absolute = findAbsoluteOrRelativeFile(filePaths);
             if (absolute != null && absolute.exists()) {
                 return Arrays.asList(absolute);
             }
         } else {
-            filePaths = "**/*.ipa, **/*.apk";
+            filePaths = DEFAULT_FILE_PATTERNS;
         }
-        List<File> files = new ArrayList<File>();
-        FileSet fileSet = Util.createFileSet(new File(remoteWorkspace), filePaths, null);
-        Iterator it = fileSet.iterator();
-        while (it.hasNext()) {
-            files.add(new File(it.next().toString()));
+        String scanPatterns = uploadRequest.scanPatterns != null ? uploadRequest.scanPatterns : filePaths;
+        if (scanResult == null) {
+            scanResult = ArtifactScanner.scan(uploadRequest.scanId, new File(remoteWorkspace), scanPatterns, uploadRequest.excludes);
         }
-        return files;
+        return scanResult.select(filePaths);
     }
 
     /*
@@ -0,0 +1,82 @@
+package testflight;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Notifier;
+import hudson.tasks.Publisher;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Waits for the uploads the build left running in the background, for the steps after it to get their links,
+ * e.g. in {@code TESTFLIGHT_INSTALL_URL}. Fails the build if an upload failed, unless it only uploaded dSYMs.
+ * <p/>
+ * A notifier, so that it runs after the {@link TestflightRecorder} starting the uploads.
+ */
+public class TestflightUploadAwaiter extends Notifier {
+    /**
+     * How long to wait in minutes, none if null.
+     */
+    private Integer timeout;
+
+    public Integer getTimeout() {
+        return this.timeout;
+    }
+
+    @DataBoundConstructor
+    public TestflightUploadAwaiter(Integer timeout) {
+        this.timeout = timeout;
+    }
+
+    public BuildStepMonitor getRequiredMonitorService() {
+        return BuildStepMonitor.NONE;
+    }
+
+    @Override
+    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+        List<TestflightAsyncUploadAction> uploads = build.getActions(TestflightAsyncUploadAction.class);
+        if (uploads.isEmpty()) {
+            listener.getLogger().println(Messages.TestflightUploadAwaiter_NoUpload());
+            return true;
+        }
+        long timeoutMillis = timeout != null ? timeout * 60000L : 0;
+        for (TestflightAsyncUploadAction upload : uploads) {
+            listener.getLogger().println(Messages.TestflightUploadAwaiter_Waiting());
+            boolean success;
+            try {
+                success = upload.await(timeoutMillis);
+            } catch (TimeoutException e) {
+                listener.getLogger().println(Messages.TestflightUploadAwaiter_Timeout(timeout));
+                return false;
+            }
+            upload.writeLogTo(listener.getLogger());
+            if (!success && upload.isRequired())
+                return false;
+        }
+        return true;
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends BuildStepDescriptor<Publisher> {
+        public DescriptorImpl() {
+            super(TestflightUploadAwaiter.class);
+        }
+
+        public boolean isApplicable(Class<? extends AbstractProject> aClass) {
+            return true;
+        }
+
+        public String getDisplayName() {
+            return Messages.TestflightUploadAwaiter_DisplayName();
+        }
+    }
+}
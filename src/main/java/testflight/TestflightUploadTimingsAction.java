@@ -0,0 +1,172 @@
+package testflight;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Where the time of the uploads of a build went, file by file, shown on the build page and charted by
+ * {@link TestflightUploadTrendAction}.
+ */
+public class TestflightUploadTimingsAction implements Action {
+    private final List<FileTimings> files = new ArrayList<FileTimings>();
+    // finding the files of all the teams in the workspace
+    private long scanMillis;
+
+    /**
+     * Adds the timings of the uploaded files to the build.
+     */
+    static void record(AbstractBuild<?, ?> build, List<TeamUploadResult> teamResults) {
+        List<FileTimings> files = new ArrayList<FileTimings>();
+        for (TeamUploadResult teamResult : teamResults) {
+            if (teamResult.results == null)
+                continue;
+            for (UploadResult result : teamResult.results) {
+                files.add(new FileTimings(teamResult.request.tokenPairName, result));
+            }
+        }
+        if (files.isEmpty())
+            return;
+        synchronized (build) {
+            TestflightUploadTimingsAction action = build.getAction(TestflightUploadTimingsAction.class);
+            if (action == null) {
+                action = new TestflightUploadTimingsAction();
+                build.addAction(action);
+            }
+            action.add(files, TeamUploadResult.getScanMillis(teamResults));
+        }
+    }
+
+    private synchronized void add(List<FileTimings> files, long scanMillis) {
+        this.files.addAll(files);
+        this.scanMillis += scanMillis;
+    }
+
+    /**
+     * The time spent finding the files to upload in the workspace.
+     */
+    public synchronized long getScanMillis() {
+        return scanMillis;
+    }
+
+    public synchronized List<FileTimings> getFiles() {
+        return Collections.unmodifiableList(new ArrayList<FileTimings>(files));
+    }
+
+    /**
+     * The time of finding the files, then of all the uploads one after the other.
+     */
+    public synchronized long getTotalMillis() {
+        long millis = scanMillis;
+        for (FileTimings file : files) {
+            if (file.timings != null) {
+                millis += file.timings.getOverallMillis();
+            }
+        }
+        return millis;
+    }
+
+    /**
+     * The bytes sent by all the uploads.
+     */
+    public synchronized long getBytes() {
+        long bytes = 0;
+        for (FileTimings file : files) {
+            if (file.timings != null) {
+                bytes += file.timings.getBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * The time taken to send the bodies of all the uploads.
+     */
+    public synchronized long getBodyMillis() {
+        long millis = 0;
+        for (FileTimings file : files) {
+            if (file.timings != null) {
+                millis += file.timings.getBodyMillis();
+            }
+        }
+        return millis;
+    }
+
+    /**
+     * The speed at which the bodies were sent, in bits per second.
+     */
+    public float getBodySpeed() {
+        long bodyMillis = getBodyMillis();
+        return bodyMillis == 0 ? Float.NaN : (getBytes() * 8000.0f) / bodyMillis;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.TestflightUploadTimingsAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+
+    /**
+     * The timings of one uploaded file.
+     */
+    public static class FileTimings {
+        private final String tokenPairName;
+        private final String fileName;
+        private final long size;
+        private final boolean reused;
+        // null if the file wasn't sent
+        private final UploadTimings timings;
+
+        FileTimings(String tokenPairName, UploadResult result) {
+            this.tokenPairName = tokenPairName;
+            this.fileName = result.getFileName();
+            this.size = result.getSize();
+            this.reused = result.isReused();
+            this.timings = result.getTimings();
+        }
+
+        public String getTokenPairName() {
+            return tokenPairName;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getPrettySize() {
+            String[] units = {"B", "KB", "MB", "GB"};
+            double value = size;
+            int idx = 0;
+            while (value >= 1024 && idx < units.length - 1) {
+                value /= 1024;
+                idx++;
+            }
+            return String.format("%.1f %s", value, units[idx]);
+        }
+
+        public boolean isReused() {
+            return reused;
+        }
+
+        public UploadTimings getTimings() {
+            return timings;
+        }
+
+        public String getBodySpeed() {
+            return timings != null ? TestflightRemoteRecorder.prettySpeed(timings.getBodySpeed()) : null;
+        }
+    }
+}
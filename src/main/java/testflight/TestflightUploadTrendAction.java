@@ -0,0 +1,274 @@
+package testflight;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.util.ChartUtil;
+import hudson.util.DataSetBuilder;
+import hudson.util.ShiftedCategoryAxis;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.ui.RectangleInsets;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Charts the duration and the throughput of the uploads of the last builds of a project, from their
+ * {@link TestflightUploadTimingsAction}s.
+ * <p/>
+ * The figures of each project are collected from its build history the first time they are needed, then kept up to
+ * date by {@link TestflightProjectIndex} as builds complete or are deleted, so that showing the project page doesn't
+ * load the last builds again.
+ */
+public class TestflightUploadTrendAction implements Action {
+    // the number of builds looked at, uploading or not
+    static final int MAX_BUILDS = 50;
+
+    private static final ConcurrentMap<String, Trend> trends = new ConcurrentHashMap<String, Trend>();
+
+    private final AbstractProject<?, ?> project;
+
+    public TestflightUploadTrendAction(AbstractProject<?, ?> project) {
+        this.project = project;
+    }
+
+    public AbstractProject<?, ?> getProject() {
+        return project;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.TestflightUploadTrendAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return "testflightTrend";
+    }
+
+    /**
+     * Whether a build uploaded enough to draw a chart.
+     */
+    public boolean hasData() {
+        return !getTrend(project).isEmpty();
+    }
+
+    /**
+     * Draws the time spent in each phase of the uploads of each build, stacked.
+     */
+    public void doDurationGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        if (isCached(req, rsp))
+            return;
+        DataSetBuilder<String, BuildLabel> data = new DataSetBuilder<String, BuildLabel>();
+        for (Point point : getTrend(project).getPoints()) {
+            data.add(point.scanMillis / 1000.0, Messages.TestflightUploadTrendAction_Scan(), point.label);
+            data.add(point.dsymMillis / 1000.0, Messages.TestflightUploadTrendAction_Dsym(), point.label);
+            data.add(point.connectMillis / 1000.0, Messages.TestflightUploadTrendAction_Connect(), point.label);
+            data.add(point.bodyMillis / 1000.0, Messages.TestflightUploadTrendAction_Body(), point.label);
+            data.add(point.responseMillis / 1000.0, Messages.TestflightUploadTrendAction_Response(), point.label);
+        }
+        JFreeChart chart = ChartFactory.createStackedAreaChart(null, null, Messages.TestflightUploadTrendAction_Seconds(), data.build(),
+                PlotOrientation.VERTICAL, true, true, false);
+        ChartUtil.generateGraph(req, rsp, configure(chart), 500, 200);
+    }
+
+    /**
+     * Draws the speed at which the bodies of the uploads of each build were sent.
+     */
+    public void doThroughputGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        if (isCached(req, rsp))
+            return;
+        DataSetBuilder<String, BuildLabel> data = new DataSetBuilder<String, BuildLabel>();
+        for (Point point : getTrend(project).getPoints()) {
+            if (point.bodyMillis == 0)
+                continue;
+            data.add(point.bytes * 1000.0 / point.bodyMillis / 1024, Messages.TestflightUploadTrendAction_KilobytesPerSecond(), point.label);
+        }
+        JFreeChart chart = ChartFactory.createLineChart(null, null, Messages.TestflightUploadTrendAction_KilobytesPerSecond(), data.build(),
+                PlotOrientation.VERTICAL, false, true, false);
+        ChartUtil.generateGraph(req, rsp, configure(chart), 500, 200);
+    }
+
+    /**
+     * Adds the uploads of the build to the trend of its project, if it was collected already.
+     */
+    static void update(AbstractBuild<?, ?> build) {
+        Trend trend = trends.get(build.getProject().getFullName());
+        if (trend != null) {
+            trend.add(build);
+        }
+    }
+
+    /**
+     * Removes the uploads of the build from the trend of its project.
+     */
+    static void remove(AbstractBuild<?, ?> build) {
+        Trend trend = trends.get(build.getProject().getFullName());
+        if (trend != null) {
+            trend.remove(build.getNumber());
+        }
+    }
+
+    private static Trend getTrend(AbstractProject<?, ?> project) {
+        Trend trend = trends.get(project.getFullName());
+        if (trend == null) {
+            trend = new Trend();
+            int builds = 0;
+            for (AbstractBuild<?, ?> build = project.getLastBuild(); build != null && builds < MAX_BUILDS; build = build.getPreviousBuild(), builds++) {
+                trend.add(build);
+            }
+            Trend concurrent = trends.putIfAbsent(project.getFullName(), trend);
+            if (concurrent != null) {
+                trend = concurrent;
+            }
+        }
+        return trend;
+    }
+
+    // the chart only changes when timings are recorded or removed, which an upload in the background may do long after
+    // its build started
+    private boolean isCached(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        if (ChartUtil.awtProblemCause != null) {
+            rsp.sendRedirect2(req.getContextPath() + "/images/headless.png");
+            return true;
+        }
+        return req.checkIfModified(getTrend(project).getLastModified(), rsp);
+    }
+
+    private static JFreeChart configure(JFreeChart chart) {
+        chart.setBackgroundPaint(Color.white);
+        CategoryPlot plot = chart.getCategoryPlot();
+        plot.setBackgroundPaint(Color.WHITE);
+        plot.setOutlinePaint(null);
+        plot.setRangeGridlinesVisible(true);
+        plot.setRangeGridlinePaint(Color.black);
+
+        CategoryAxis domainAxis = new ShiftedCategoryAxis(null);
+        plot.setDomainAxis(domainAxis);
+        domainAxis.setCategoryLabelPositions(CategoryLabelPositions.UP_90);
+        domainAxis.setLowerMargin(0.0);
+        domainAxis.setUpperMargin(0.0);
+        domainAxis.setCategoryMargin(0.0);
+
+        plot.setInsets(new RectangleInsets(0, 0, 0, 5.0));
+        return chart;
+    }
+
+    /**
+     * The figures of the uploads of the last builds of a project having some, by build number.
+     */
+    private static class Trend {
+        private final SortedMap<Integer, Point> points = new TreeMap<Integer, Point>();
+        // when the points last changed, or were collected
+        private long lastModified = System.currentTimeMillis();
+
+        synchronized void add(AbstractBuild<?, ?> build) {
+            TestflightUploadTimingsAction action = build.getAction(TestflightUploadTimingsAction.class);
+            if (action == null)
+                return;
+            points.put(build.getNumber(), new Point(build.getNumber(), action));
+            // the builds too old to be charted
+            int oldest = points.lastKey() - MAX_BUILDS + 1;
+            points.headMap(oldest).clear();
+            lastModified = System.currentTimeMillis();
+        }
+
+        synchronized void remove(int buildNumber) {
+            if (points.remove(buildNumber) != null) {
+                lastModified = System.currentTimeMillis();
+            }
+        }
+
+        synchronized long getLastModified() {
+            return lastModified;
+        }
+
+        synchronized boolean isEmpty() {
+            return points.isEmpty();
+        }
+
+        synchronized List<Point> getPoints() {
+            return new ArrayList<Point>(points.values());
+        }
+    }
+
+    /**
+     * The figures of the uploads of one build.
+     */
+    private static class Point {
+        final BuildLabel label;
+        final long scanMillis;
+        final long dsymMillis;
+        final long connectMillis;
+        final long bodyMillis;
+        final long responseMillis;
+        final long bytes;
+
+        Point(int buildNumber, TestflightUploadTimingsAction action) {
+            long dsym = 0, connect = 0, body = 0, response = 0, bytes = 0;
+            for (TestflightUploadTimingsAction.FileTimings file : action.getFiles()) {
+                UploadTimings timings = file.getTimings();
+                if (timings == null)
+                    continue;
+                dsym += timings.getDsymMillis();
+                connect += timings.getConnectMillis();
+                body += timings.getBodyMillis();
+                response += timings.getResponseMillis();
+                bytes += timings.getBytes();
+            }
+            this.label = new BuildLabel(buildNumber);
+            this.scanMillis = action.getScanMillis();
+            this.dsymMillis = dsym;
+            this.connectMillis = connect;
+            this.bodyMillis = body;
+            this.responseMillis = response;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Labels the charts with the build numbers, without holding on to the builds.
+     */
+    private static class BuildLabel implements Comparable<BuildLabel> {
+        final int buildNumber;
+
+        BuildLabel(int buildNumber) {
+            this.buildNumber = buildNumber;
+        }
+
+        public int compareTo(BuildLabel that) {
+            return buildNumber < that.buildNumber ? -1 : buildNumber == that.buildNumber ? 0 : 1;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BuildLabel && ((BuildLabel) o).buildNumber == buildNumber;
+        }
+
+        @Override
+        public int hashCode() {
+            return buildNumber;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + buildNumber;
+        }
+    }
+}
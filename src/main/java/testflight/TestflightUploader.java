@@ -3,21 +3,31 @@ package testflight;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.Credentials;
-import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.conn.params.ConnRoutePNames;
 import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.entity.mime.content.AbstractContentBody;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.entity.mime.content.StringBody;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpProtocolParams;
 import org.json.simple.parser.JSONParser;
 import org.apache.commons.io.IOUtils;
 
 import java.io.*;
+import java.net.URI;
 import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.Scanner;
 
 import org.apache.commons.lang.builder.ToStringBuilder;
@@ -28,13 +38,24 @@ import org.apache.commons.lang.builder.ToStringBuilder;
 public class TestflightUploader implements Serializable {
     static interface Logger {
         void logDebug(String message);
+
+        void logInfo(String message);
     }
 
     static class UploadRequest implements Serializable {
         String filePaths;
+        // patterns of the files of all the teams of the build, and files excluded from the workspace scan
+        String scanPatterns;
+        String excludes;
+        // identifies the build, to share one workspace scan between its teams
+        String scanId;
         String dsymPath;
+        // the name of the token pair, to count the uploads of each
+        String tokenPairName;
         String apiToken;
         String teamToken;
+        // the URL to post the builds to, the TestFlight API if null
+        String endpoint;
         Boolean notifyTeam;
         String buildNotes;
         File file;
@@ -46,13 +67,38 @@ public class TestflightUploader implements Serializable {
         String proxyPass;
         int proxyPort;
         Boolean debug;
+        int maxAttempts;
+        long retryDelayMillis;
+        int connectTimeoutMillis;
+        int readTimeoutMillis;
+        long minBytesPerSecond;
+        int stallPeriodSeconds;
+        int progressIntervalSeconds;
+        // bandwidth limits of this upload and of all the uploads of the node, 0 for none
+        long maxBytesPerSecond;
+        long nodeMaxBytesPerSecond;
+        // how long the outcome of the check of the tokens is valid, 0 not to check them before uploading
+        long tokenCheckTtlMillis;
+        // whether to upload the dSYM in a second request, once the ipa is available to testers
+        boolean deferDsym;
+        // the files already uploaded to the team, to skip identical ones; null not to look for them
+        List<PreviousUpload> previousUploads;
+        // how long it took to find the dSYM of the file, measured when resolving the files
+        long dsymMillis;
+        // filled by the uploader with the timings of the last request it sent
+        UploadTimings timings;
 
         public String toString() {
             return new ToStringBuilder(this)
                     .append("filePaths", filePaths)
+                    .append("scanPatterns", scanPatterns)
+                    .append("excludes", excludes)
+                    .append("scanId", scanId)
                     .append("dsymPath", dsymPath)
                     .append("apiToken", "********")
+                    .append("tokenPairName", tokenPairName)
                     .append("teamToken", "********")
+                    .append("endpoint", endpoint)
                     .append("notifyTeam", notifyTeam)
                     .append("buildNotes", buildNotes)
                     .append("file", file)
@@ -64,15 +110,32 @@ public class TestflightUploader implements Serializable {
                     .append("proxyPass", "********")
                     .append("proxyPort", proxyPort)
                     .append("debug", debug)
+                    .append("maxAttempts", maxAttempts)
+                    .append("retryDelayMillis", retryDelayMillis)
+                    .append("connectTimeoutMillis", connectTimeoutMillis)
+                    .append("readTimeoutMillis", readTimeoutMillis)
+                    .append("minBytesPerSecond", minBytesPerSecond)
+                    .append("stallPeriodSeconds", stallPeriodSeconds)
+                    .append("progressIntervalSeconds", progressIntervalSeconds)
+                    .append("maxBytesPerSecond", maxBytesPerSecond)
+                    .append("nodeMaxBytesPerSecond", nodeMaxBytesPerSecond)
+                    .append("tokenCheckTtlMillis", tokenCheckTtlMillis)
+                    .append("deferDsym", deferDsym)
+                    .append("previousUploads", previousUploads != null ? previousUploads.size() : null)
                     .toString();
         }
 
         static UploadRequest copy(UploadRequest r) {
             UploadRequest r2 = new UploadRequest();
             r2.filePaths = r.filePaths;
+            r2.scanPatterns = r.scanPatterns;
+            r2.excludes = r.excludes;
+            r2.scanId = r.scanId;
             r2.dsymPath = r.dsymPath;
             r2.apiToken = r.apiToken;
+            r2.tokenPairName = r.tokenPairName;
             r2.teamToken = r.teamToken;
+            r2.endpoint = r.endpoint;
             r2.notifyTeam = r.notifyTeam;
             r2.buildNotes = r.buildNotes;
             r2.file = r.file;
@@ -84,70 +147,276 @@ public class TestflightUploader implements Serializable {
             r2.proxyPort = r.proxyPort;
             r2.proxyPass = r.proxyPass;
             r2.debug = r.debug;
+            r2.maxAttempts = r.maxAttempts;
+            r2.retryDelayMillis = r.retryDelayMillis;
+            r2.connectTimeoutMillis = r.connectTimeoutMillis;
+            r2.readTimeoutMillis = r.readTimeoutMillis;
+            r2.minBytesPerSecond = r.minBytesPerSecond;
+            r2.stallPeriodSeconds = r.stallPeriodSeconds;
+            r2.progressIntervalSeconds = r.progressIntervalSeconds;
+            r2.maxBytesPerSecond = r.maxBytesPerSecond;
+            r2.nodeMaxBytesPerSecond = r.nodeMaxBytesPerSecond;
+            r2.tokenCheckTtlMillis = r.tokenCheckTtlMillis;
+            r2.deferDsym = r.deferDsym;
+            r2.previousUploads = r.previousUploads;
 
             return r2;
         }
     }
 
+    /**
+     * Set to send the body with the httpmime {@link MultipartEntity}, which copies every file part through small buffers of
+     * its own, rather than with {@link BufferedMultipartEntity}, e.g. to compare the two.
+     */
+    static final boolean LEGACY_MULTIPART_ENTITY = Boolean.getBoolean(TestflightUploader.class.getName() + ".legacyMultipartEntity");
+
+    /**
+     * Where builds are uploaded to, unless the request says otherwise.
+     */
+    static final String DEFAULT_ENDPOINT = "http://testflightapp.com/api/builds.json";
+
+    /**
+     * Set to false for servers or proxies mishandling {@code Expect: 100-continue}.
+     */
+    static final boolean EXPECT_CONTINUE = !"false".equals(System.getProperty(TestflightUploader.class.getName() + ".expectContinue"));
+
+    // upper bound of the delay between two attempts, before jitter
+    static final long MAX_RETRY_DELAY_MILLIS = 5 * 60 * 1000;
+
+    // how long an aborted request may take to release its connection
+    static final long ABORT_TIMEOUT_SECONDS = 10;
+
+    private static ExecutorService executionService;
+
+    private static ScheduledExecutorService scheduler;
+
     private Logger logger = null;
 
+    private final Random random = new Random();
+
+    private boolean legacyMultipartEntity = LEGACY_MULTIPART_ENTITY;
+
     public void setLogger(Logger logger) {
         this.logger = logger;
     }
 
+    void setLegacyMultipartEntity(boolean legacyMultipartEntity) {
+        this.legacyMultipartEntity = legacyMultipartEntity;
+    }
+
+    /**
+     * Uploads the request, unless the same file is being uploaded to the same team with the same notes by another build of
+     * this JVM: the response of that upload is then returned.
+     *
+     * @see #uploadWithRetries(UploadRequest)
+     */
     public Map upload(UploadRequest ur) throws IOException, org.json.simple.parser.ParseException {
-        DefaultHttpClient httpClient = new DefaultHttpClient();
+        UploadMetrics metrics = UploadMetrics.forTokenPair(ur.tokenPairName);
+        metrics.uploadStarted();
+        long startMillis = System.currentTimeMillis();
+        int statusCode = UploadMetrics.NO_STATUS;
+        boolean succeeded = false;
+        try {
+            Map response = uploadOrJoin(ur);
+            succeeded = true;
+            return response;
+        } catch (UploadException e) {
+            statusCode = e.getStatusCode();
+            throw e;
+        } finally {
+            long millis = System.currentTimeMillis() - startMillis;
+            if (succeeded) {
+                metrics.uploadSucceeded(millis);
+            } else {
+                metrics.uploadFailed(statusCode, millis);
+            }
+        }
+    }
 
-        // Configure the proxy if necessary
-        if (ur.proxyHost != null && !ur.proxyHost.isEmpty() && ur.proxyPort > 0) {
-            Credentials cred = null;
-            if (ur.proxyUser != null && !ur.proxyUser.isEmpty())
-                cred = new UsernamePasswordCredentials(ur.proxyUser, ur.proxyPass);
+    private Map uploadOrJoin(UploadRequest ur) throws IOException, org.json.simple.parser.ParseException {
+        if (ur.tokenCheckTtlMillis > 0) {
+            checkTokens(ur);
+        }
+        if (ur.file == null || !ur.file.isFile())
+            return uploadWithRetries(ur);
 
-            httpClient.getCredentialsProvider().setCredentials(new AuthScope(ur.proxyHost, ur.proxyPort), cred);
-            HttpHost proxy = new HttpHost(ur.proxyHost, ur.proxyPort);
-            httpClient.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY, proxy);
+        UploadCoalescer.Flight flight = UploadCoalescer.get().join(ur);
+        if (flight.isLedBy(ur)) {
+            Map response = null;
+            try {
+                response = uploadWithRetries(ur);
+                return response;
+            } finally {
+                flight.land(response);
+            }
         }
 
-        HttpHost targetHost = new HttpHost("testflightapp.com");
-        HttpPost httpPost = new HttpPost("/api/builds.json");
-        FileBody fileBody = new FileBody(ur.file);
+        logInfo(Messages.TestflightUploader_JoiningUpload(ur.file.getName()));
+        Map response;
+        try {
+            response = flight.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an identical upload");
+        }
+        if (response == null) {
+            // the other upload failed, maybe for reasons of its own
+            return uploadWithRetries(ur);
+        }
+        return new HashMap(response);
+    }
 
-        MultipartEntity entity = new MultipartEntity();
-        entity.addPart("api_token", new StringBody(ur.apiToken));
-        entity.addPart("team_token", new StringBody(ur.teamToken));
-        entity.addPart("notes", new StringBody(ur.buildNotes, "text/plain", Charset.forName("UTF-8")));
-        entity.addPart("file", fileBody);
+    // fails before sending anything when the tokens are rejected
+    void checkTokens(UploadRequest ur) throws IOException {
+        try {
+            URI endpoint = getEndpoint(ur);
+            TokenValidator.validate(ur, getTargetHost(endpoint), getPath(endpoint));
+        } catch (UploadException e) {
+            logInfo(Messages.TestflightUploader_TokensRejected(e.getStatusCode()));
+            throw e;
+        }
+    }
 
-        if (ur.dsymFile != null) {
-            FileBody dsymFileBody = new FileBody(ur.dsymFile);
-            entity.addPart("dsym", dsymFileBody);
+    static URI getEndpoint(UploadRequest ur) {
+        return URI.create(ur.endpoint != null && !ur.endpoint.trim().isEmpty() ? ur.endpoint.trim() : DEFAULT_ENDPOINT);
+    }
+
+    static HttpHost getTargetHost(URI endpoint) {
+        return new HttpHost(endpoint.getHost(), endpoint.getPort(), endpoint.getScheme());
+    }
+
+    static String getPath(URI endpoint) {
+        String path = endpoint.getRawPath() != null && !endpoint.getRawPath().isEmpty() ? endpoint.getRawPath() : "/";
+        return endpoint.getRawQuery() != null ? path + "?" + endpoint.getRawQuery() : path;
+    }
+
+    /**
+     * Uploads the request, retrying up to {@link UploadRequest#maxAttempts} times on connection errors and 5xx responses.
+     * <p/>
+     * The delay between attempts grows exponentially from {@link UploadRequest#retryDelayMillis}, with a random jitter so that
+     * builds failing together don't retry together. The TestFlight API has no ranged upload, so every attempt sends the whole body.
+     */
+    private Map uploadWithRetries(UploadRequest ur) throws IOException, org.json.simple.parser.ParseException {
+        int maxAttempts = Math.max(1, ur.maxAttempts);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return uploadOnce(ur);
+            } catch (IOException e) {
+                if (attempt >= maxAttempts || !isRetryable(e))
+                    throw e;
+                waitBeforeRetry(ur, attempt, maxAttempts, e);
+            } catch (UploadException e) {
+                if (attempt >= maxAttempts || e.getStatusCode() < 500)
+                    throw e;
+                waitBeforeRetry(ur, attempt, maxAttempts, e);
+            }
         }
+    }
 
-        if (ur.lists.length() > 0)
-            entity.addPart("distribution_lists", new StringBody(ur.lists));
-        entity.addPart("notify", new StringBody(ur.notifyTeam ? "True" : "False"));
-        if (ur.replace)
-            entity.addPart("replace", new StringBody("True"));
+    private static boolean isRetryable(IOException e) {
+        // a missing file won't appear by retrying, and an aborted build shouldn't retry
+        return !(e instanceof FileNotFoundException) && !Thread.currentThread().isInterrupted();
+    }
+
+    private void waitBeforeRetry(UploadRequest ur, int attempt, int maxAttempts, Exception cause) throws InterruptedIOException {
+        UploadMetrics.forTokenPair(ur.tokenPairName).retried();
+        long delay = backoffDelay(attempt, ur.retryDelayMillis, random);
+        logInfo(Messages.TestflightUploader_RetryingUpload(attempt, maxAttempts, cause, delay / 1000));
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry the upload");
+        }
+    }
+
+    /**
+     * Returns the delay before the attempt following the given one: the initial delay doubled for each failed attempt,
+     * capped to {@link #MAX_RETRY_DELAY_MILLIS}, then randomly picked between half of it and all of it.
+     */
+    static long backoffDelay(int attempt, long initialDelayMillis, Random random) {
+        long delay = initialDelayMillis;
+        for (int i = 1; i < attempt && delay < MAX_RETRY_DELAY_MILLIS; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, MAX_RETRY_DELAY_MILLIS);
+        return delay / 2 + (long) (random.nextDouble() * (delay - delay / 2));
+    }
+
+    Map uploadOnce(UploadRequest ur) throws IOException, org.json.simple.parser.ParseException {
+        TestflightHttpClient.Lease lease = TestflightHttpClient.acquire(ur);
+        try {
+            return uploadOnce(ur, lease.getClient());
+        } finally {
+            lease.release();
+        }
+    }
+
+    private Map uploadOnce(UploadRequest ur, DefaultHttpClient httpClient) throws IOException, org.json.simple.parser.ParseException {
+        URI endpoint = getEndpoint(ur);
+        HttpHost targetHost = getTargetHost(endpoint);
+        HttpPost httpPost = new HttpPost(getPath(endpoint));
+        HttpEntity body = ThrottledHttpEntity.throttle(createEntity(ur), ur.maxBytesPerSecond, ur.nodeMaxBytesPerSecond);
+        CountingHttpEntity entity = new CountingHttpEntity(body);
         httpPost.setEntity(entity);
+        // 0 means no timeout
+        HttpConnectionParams.setConnectionTimeout(httpPost.getParams(), ur.connectTimeoutMillis);
+        HttpConnectionParams.setSoTimeout(httpPost.getParams(), ur.readTimeoutMillis);
+        // lets the server refuse the request, e.g. for a wrong token, before the body is sent
+        HttpProtocolParams.setUseExpectContinue(httpPost.getParams(), EXPECT_CONTINUE);
 
         logDebug("POST Request: " + ur);
 
-        HttpResponse response = httpClient.execute(targetHost, httpPost);
+        UploadWatchdog watchdog = null;
+        if (ur.minBytesPerSecond > 0 && ur.stallPeriodSeconds > 0) {
+            watchdog = UploadWatchdog.start(httpPost, entity, ur.minBytesPerSecond, ur.stallPeriodSeconds);
+        }
+        UploadProgressReporter progressReporter = null;
+        if (logger != null && ur.progressIntervalSeconds > 0) {
+            ThrottledHttpEntity throttle = body instanceof ThrottledHttpEntity ? (ThrottledHttpEntity) body : null;
+            progressReporter = UploadProgressReporter.start(entity, throttle, logger, ur.progressIntervalSeconds);
+        }
+        long requestStartMillis = System.currentTimeMillis();
+        HttpResponse response;
+        try {
+            response = execute(httpClient, targetHost, httpPost, entity);
+            ur.timings = computeTimings(entity, requestStartMillis, System.currentTimeMillis());
+        } catch (IOException e) {
+            if (watchdog != null && watchdog.isStalled()) {
+                String message = Messages.TestflightUploader_UploadStalled(ur.minBytesPerSecond / 1024, ur.stallPeriodSeconds, watchdog.getBytesSent());
+                logInfo(message);
+                throw new UploadStalledException(message, watchdog.getBytesSent());
+            }
+            throw e;
+        } finally {
+            UploadMetrics.forTokenPair(ur.tokenPairName).bytesSent(entity.getBytesWritten());
+            if (watchdog != null) {
+                watchdog.stop();
+            }
+            if (progressReporter != null) {
+                progressReporter.stop();
+            }
+        }
         HttpEntity resEntity = response.getEntity();
 
-        InputStream is = resEntity.getContent();
+        String json;
+        try {
+            InputStream is = resEntity.getContent();
 
-        // Improved error handling.
-        int statusCode = response.getStatusLine().getStatusCode();
-        if (statusCode != 200) {
-            String responseBody = new Scanner(is).useDelimiter("\\A").next();
-            throw new UploadException(statusCode, responseBody, response);
-        }
+            // Improved error handling.
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != 200) {
+                String responseBody = new Scanner(is).useDelimiter("\\A").next();
+                throw new UploadException(statusCode, responseBody, response);
+            }
 
-        StringWriter writer = new StringWriter();
-        IOUtils.copy(is, writer, "UTF-8");
-        String json = writer.toString();
+            StringWriter writer = new StringWriter();
+            IOUtils.copy(is, writer, "UTF-8");
+            json = writer.toString();
+        } finally {
+            // release the connection back to the pool
+            resEntity.consumeContent();
+        }
 
         logDebug("POST Answer: " + json);
 
@@ -156,9 +425,123 @@ public class TestflightUploader implements Serializable {
         return (Map) parser.parse(json);
     }
 
+    /**
+     * Executes the request on a separate thread, so that interrupting the current thread (e.g. when the build is aborted)
+     * aborts the request and closes its connection instead of waiting for the whole body to be sent.
+     */
+    private HttpResponse execute(final DefaultHttpClient httpClient, final HttpHost targetHost, final HttpPost httpPost, CountingHttpEntity entity) throws IOException {
+        Future<HttpResponse> execution = getExecutionService().submit(new Callable<HttpResponse>() {
+            public HttpResponse call() throws IOException {
+                return httpClient.execute(targetHost, httpPost);
+            }
+        });
+        try {
+            return execution.get();
+        } catch (InterruptedException e) {
+            httpPost.abort();
+            try {
+                execution.get(ABORT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (Exception ignored) {
+                // we only wait for the request to be torn down
+            }
+            logInfo(Messages.TestflightUploader_UploadAborted(entity.getBytesWritten()));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Testflight upload aborted after " + entity.getBytesWritten() + " bytes");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause.toString());
+        }
+    }
+
+    private static UploadTimings computeTimings(CountingHttpEntity entity, long requestStartMillis, long responseMillis) {
+        UploadTimings timings = new UploadTimings();
+        timings.bytes = entity.getBytesWritten();
+        if (entity.getWriteEndMillis() > 0) {
+            timings.connectMillis = entity.getWriteStartMillis() - requestStartMillis;
+            timings.bodyMillis = entity.getWriteEndMillis() - entity.getWriteStartMillis();
+            timings.responseMillis = responseMillis - entity.getWriteEndMillis();
+        } else {
+            // the server answered before we were done sending, e.g. with an error
+            timings.connectMillis = responseMillis - requestStartMillis;
+        }
+        return timings;
+    }
+
+    /**
+     * Timer shared by the watchdogs and progress reporters of all the uploads.
+     */
+    static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Testflight upload timer"));
+        }
+        return scheduler;
+    }
+
+    private static synchronized ExecutorService getExecutionService() {
+        if (executionService == null) {
+            executionService = Executors.newCachedThreadPool(new NamedThreadFactory("Testflight upload"));
+        }
+        return executionService;
+    }
+
+    HttpEntity createEntity(UploadRequest ur) throws IOException {
+        if (legacyMultipartEntity) {
+            final MultipartEntity entity = new MultipartEntity();
+            addParts(ur, new PartSink() {
+                public void addPart(String name, AbstractContentBody body) {
+                    entity.addPart(name, body);
+                }
+            });
+            return entity;
+        }
+        final BufferedMultipartEntity entity = new BufferedMultipartEntity();
+        addParts(ur, new PartSink() {
+            public void addPart(String name, AbstractContentBody body) throws IOException {
+                entity.addPart(name, body);
+            }
+        });
+        // fingerprinted from the bytes sent
+        entity.digestWhileWriting(ur.file);
+        return entity;
+    }
+
+    private interface PartSink {
+        void addPart(String name, AbstractContentBody body) throws IOException;
+    }
+
+    private static void addParts(UploadRequest ur, PartSink entity) throws IOException {
+        entity.addPart("api_token", new StringBody(ur.apiToken));
+        entity.addPart("team_token", new StringBody(ur.teamToken));
+        entity.addPart("notes", new StringBody(ur.buildNotes, "text/plain", Charset.forName("UTF-8")));
+        entity.addPart("file", new FileBody(ur.file));
+
+        if (ur.dsymFile != null) {
+            // a .dSYM directory is zipped on the fly
+            entity.addPart("dsym", ur.dsymFile.isDirectory() ? new DsymZipBody(ur.dsymFile) : new FileBody(ur.dsymFile));
+        }
+
+        if (ur.lists.length() > 0)
+            entity.addPart("distribution_lists", new StringBody(ur.lists));
+        entity.addPart("notify", new StringBody(ur.notifyTeam ? "True" : "False"));
+        if (ur.replace)
+            entity.addPart("replace", new StringBody("True"));
+    }
+
     private void logDebug(String message) {
         if (logger != null) {
             logger.logDebug(message);
         }
     }
+
+    private void logInfo(String message) {
+        if (logger != null) {
+            logger.logInfo(message);
+        }
+    }
 }
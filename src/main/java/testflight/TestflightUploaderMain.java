@@ -21,6 +21,10 @@ public class TestflightUploaderMain {
             public void logDebug(String message) {
                 System.out.println(message);
             }
+
+            public void logInfo(String message) {
+                System.out.println(message);
+            }
         });
 
         TestflightUploader.UploadRequest r = new TestflightUploader.UploadRequest();
@@ -0,0 +1,106 @@
+package testflight;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wraps a request entity to limit the bandwidth it uses, with a bucket of its own and/or the bucket shared by all
+ * the uploads running in this JVM (master or slave).
+ */
+class ThrottledHttpEntity extends HttpEntityWrapper {
+    // the slices in which the body is written, so that concurrent uploads interleave smoothly
+    private static final int SLICE_SIZE = 16 * 1024;
+
+    private static TokenBucket nodeBucket;
+    private static final AtomicInteger nodeUploads = new AtomicInteger();
+
+    private final TokenBucket uploadBucket;
+    private final TokenBucket sharedBucket;
+
+    private ThrottledHttpEntity(HttpEntity wrapped, TokenBucket uploadBucket, TokenBucket sharedBucket) {
+        super(wrapped);
+        this.uploadBucket = uploadBucket;
+        this.sharedBucket = sharedBucket;
+    }
+
+    /**
+     * Returns the entity limited to the given rates, or the entity itself if there is no limit.
+     *
+     * @param uploadBytesPerSecond the limit of this upload, 0 for none
+     * @param nodeBytesPerSecond   the limit of all the uploads of this JVM, 0 for none
+     */
+    static HttpEntity throttle(HttpEntity entity, long uploadBytesPerSecond, long nodeBytesPerSecond) {
+        if (uploadBytesPerSecond <= 0 && nodeBytesPerSecond <= 0)
+            return entity;
+        return new ThrottledHttpEntity(entity, uploadBytesPerSecond > 0 ? new TokenBucket(uploadBytesPerSecond) : null,
+                nodeBytesPerSecond > 0 ? getNodeBucket(nodeBytesPerSecond) : null);
+    }
+
+    private static synchronized TokenBucket getNodeBucket(long bytesPerSecond) {
+        if (nodeBucket == null || nodeBucket.getBytesPerSecond() != bytesPerSecond) {
+            nodeBucket = new TokenBucket(bytesPerSecond);
+        }
+        return nodeBucket;
+    }
+
+    /**
+     * The rate this upload is currently limited to, in bits per second: its own limit, or its share of the limit of the node.
+     */
+    float getShapedSpeed() {
+        long bytesPerSecond = Long.MAX_VALUE;
+        if (uploadBucket != null) {
+            bytesPerSecond = uploadBucket.getBytesPerSecond();
+        }
+        if (sharedBucket != null) {
+            bytesPerSecond = Math.min(bytesPerSecond, sharedBucket.getBytesPerSecond() / Math.max(1, nodeUploads.get()));
+        }
+        return bytesPerSecond * 8.0f;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        if (sharedBucket != null)
+            nodeUploads.incrementAndGet();
+        try {
+            wrappedEntity.writeTo(new ThrottledOutputStream(out));
+        } finally {
+            if (sharedBucket != null)
+                nodeUploads.decrementAndGet();
+        }
+    }
+
+    private class ThrottledOutputStream extends FilterOutputStream {
+        ThrottledOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            acquire(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int slice = Math.min(len, SLICE_SIZE);
+                acquire(slice);
+                out.write(b, off, slice);
+                off += slice;
+                len -= slice;
+            }
+        }
+
+        private void acquire(int bytes) throws IOException {
+            if (uploadBucket != null)
+                uploadBucket.acquire(bytes);
+            if (sharedBucket != null)
+                sharedBucket.acquire(bytes);
+        }
+    }
+}
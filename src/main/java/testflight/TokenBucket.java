@@ -0,0 +1,50 @@
+package testflight;
+
+import java.io.InterruptedIOException;
+
+/**
+ * A token bucket rate limiter: every byte sent takes a token, and tokens are added at a fixed rate.
+ * <p/>
+ * The bucket can go into debt: a caller takes the tokens it needs right away and then sleeps, outside of any lock,
+ * until the bucket is back to zero. Concurrent callers thus share the rate in the order they came.
+ */
+class TokenBucket {
+    // at least this many bytes may be sent in a burst, whatever the rate
+    private static final long MIN_CAPACITY = 16 * 1024;
+
+    private final long bytesPerSecond;
+    private final long capacity;
+    private double tokens;
+    private long lastRefillNanos;
+
+    TokenBucket(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        // a tenth of a second worth of bytes
+        this.capacity = Math.max(MIN_CAPACITY, bytesPerSecond / 10);
+        this.tokens = capacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    void acquire(long bytes) throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * bytesPerSecond / 1e9);
+            lastRefillNanos = now;
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / bytesPerSecond) : 0;
+        }
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttling the upload");
+            }
+        }
+    }
+}
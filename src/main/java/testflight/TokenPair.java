@@ -7,15 +7,22 @@ public class TokenPair {
     private String tokenPairName;
     private Secret apiToken;
     private Secret teamToken;
+    // the URL to upload to with these tokens, the global one if empty
+    private String endpoint;
 
     public TokenPair() {
     }
 
-    @DataBoundConstructor
     public TokenPair(String tokenPairName, Secret apiToken, Secret teamToken) {
+        this(tokenPairName, apiToken, teamToken, null);
+    }
+
+    @DataBoundConstructor
+    public TokenPair(String tokenPairName, Secret apiToken, Secret teamToken, String endpoint) {
         this.tokenPairName = tokenPairName;
         this.apiToken = apiToken;
         this.teamToken = teamToken;
+        this.endpoint = endpoint;
     }
 
     public String getTokenPairName() {
@@ -41,4 +48,12 @@ public class TokenPair {
     public void setTeamToken(Secret teamToken) {
         this.teamToken = teamToken;
     }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public void setEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+    }
 }
@@ -0,0 +1,96 @@
+package testflight;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.entity.mime.content.StringBody;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Checks the tokens of an upload with a request carrying nothing else, before sending the files, so that a wrong or
+ * revoked token fails the upload at once.
+ * <p/>
+ * The outcome is remembered for each pair of tokens for a while, so that the uploads of a busy pair don't all pay for
+ * the check.
+ */
+final class TokenValidator {
+    private static final ConcurrentMap<String, Validation> validations = new ConcurrentHashMap<String, Validation>();
+
+    private TokenValidator() {
+    }
+
+    /**
+     * @throws UploadException if the server rejected the tokens, now or less than {@link TestflightUploader.UploadRequest#tokenCheckTtlMillis} ago
+     */
+    static void validate(TestflightUploader.UploadRequest ur, HttpHost targetHost, String path) throws IOException {
+        String key = ArtifactDigests.sha256(targetHost + path + '\n' + ur.apiToken + '\n' + ur.teamToken);
+        Validation validation = validations.get(key);
+        if (validation == null || validation.expiresMillis < System.currentTimeMillis()) {
+            validation = check(ur, targetHost, path);
+            if (validation == null)
+                return;
+            validations.put(key, validation);
+        }
+        if (validation.isRejected())
+            throw new UploadException(validation.statusCode, validation.responseBody, null);
+    }
+
+    static void clear() {
+        validations.clear();
+    }
+
+    // returns null if the server couldn't be reached: the upload will tell
+    private static Validation check(TestflightUploader.UploadRequest ur, HttpHost targetHost, String path) throws IOException {
+        TestflightHttpClient.Lease lease = TestflightHttpClient.acquire(ur);
+        try {
+            return check(ur, targetHost, path, lease.getClient());
+        } finally {
+            lease.release();
+        }
+    }
+
+    private static Validation check(TestflightUploader.UploadRequest ur, HttpHost targetHost, String path, DefaultHttpClient httpClient) throws IOException {
+        HttpPost httpPost = new HttpPost(path);
+        MultipartEntity entity = new MultipartEntity();
+        entity.addPart("api_token", new StringBody(ur.apiToken));
+        entity.addPart("team_token", new StringBody(ur.teamToken));
+        httpPost.setEntity(entity);
+        HttpConnectionParams.setConnectionTimeout(httpPost.getParams(), ur.connectTimeoutMillis);
+        HttpConnectionParams.setSoTimeout(httpPost.getParams(), ur.connectTimeoutMillis);
+
+        HttpResponse response;
+        try {
+            response = httpClient.execute(targetHost, httpPost);
+        } catch (IOException e) {
+            return null;
+        }
+        HttpEntity resEntity = response.getEntity();
+        String responseBody = resEntity != null ? EntityUtils.toString(resEntity, "UTF-8") : "";
+        return new Validation(response.getStatusLine().getStatusCode(), responseBody, System.currentTimeMillis() + ur.tokenCheckTtlMillis);
+    }
+
+    private static class Validation {
+        final int statusCode;
+        final String responseBody;
+        final long expiresMillis;
+
+        Validation(int statusCode, String responseBody, long expiresMillis) {
+            this.statusCode = statusCode;
+            this.responseBody = responseBody;
+            this.expiresMillis = expiresMillis;
+        }
+
+        // a request without a file is otherwise a bad request, which means the tokens were accepted
+        boolean isRejected() {
+            return statusCode == 401 || statusCode == 403;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package testflight;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Lets concurrent uploads of the same file to the same team and endpoint, e.g. from the configurations of a matrix
+ * build, share a single request: the first one uploads, the others wait for it and get the same response.
+ * <p/>
+ * Uploads are first matched on what they send besides the files and on the file sizes, which costs nothing. Only when
+ * a new upload matches one in flight otherwise are the files of both hashed to be compared, and a dSYM directory,
+ * zipped while it is sent, only matches the same directory.
+ * <p/>
+ * The digest of an upload in flight is known from the start when its file was already hashed, e.g. to look for an
+ * identical earlier upload. Otherwise it is only known once the whole file has been sent, so the first upload matching
+ * it before then reads the file in flight, for itself and any other that follows.
+ */
+class UploadCoalescer {
+    private static final UploadCoalescer INSTANCE = new UploadCoalescer();
+
+    private final List<Flight> flights = new ArrayList<Flight>();
+
+    static UploadCoalescer get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the upload in flight the request can share, or a new one the request leads and must {@link Flight#land}.
+     */
+    Flight join(TestflightUploader.UploadRequest ur) throws IOException {
+        String key = key(ur);
+        List<Flight> candidates = new ArrayList<Flight>();
+        synchronized (flights) {
+            for (Flight flight : flights) {
+                if (flight.key.equals(key)) {
+                    candidates.add(flight);
+                }
+            }
+            if (candidates.isEmpty()) {
+                return takeOff(ur, key);
+            }
+        }
+        String sha256 = ArtifactDigests.sha256(ur.file);
+        String dsymSha256 = getDsymSha256(ur);
+        for (Flight flight : candidates) {
+            if (sha256.equals(flight.getSha256()) && (dsymSha256 == null || dsymSha256.equals(flight.getDsymSha256()))) {
+                return flight;
+            }
+        }
+        synchronized (flights) {
+            return takeOff(ur, key);
+        }
+    }
+
+    // called with the lock held
+    private Flight takeOff(TestflightUploader.UploadRequest ur, String key) {
+        Flight flight = new Flight(ur, key);
+        flights.add(flight);
+        return flight;
+    }
+
+    private static String key(TestflightUploader.UploadRequest ur) {
+        return TestflightUploader.getEndpoint(ur) + "\n" + ur.apiToken + '\n' + ur.teamToken + '\n' + ur.buildNotes + '\n'
+                + ur.lists + '\n' + ur.notifyTeam + '\n' + ur.replace + '\n' + dsymKey(ur.dsymFile) + '\n' + ur.file.length();
+    }
+
+    private static String dsymKey(File dsymFile) {
+        if (dsymFile == null)
+            return "";
+        return dsymFile.isDirectory() ? dsymFile.getAbsolutePath() : String.valueOf(dsymFile.length());
+    }
+
+    // null if there is no dSYM file to hash
+    private static String getDsymSha256(TestflightUploader.UploadRequest ur) throws IOException {
+        return ur.dsymFile != null && ur.dsymFile.isFile() ? ArtifactDigests.sha256(ur.dsymFile) : null;
+    }
+
+    class Flight {
+        private final TestflightUploader.UploadRequest leader;
+        private final String key;
+        private final CountDownLatch landed = new CountDownLatch(1);
+        private volatile Map response;
+        private String sha256;
+
+        Flight(TestflightUploader.UploadRequest leader, String key) {
+            this.leader = leader;
+            this.key = key;
+            // published before anyone can join, when it costs no read
+            this.sha256 = ArtifactDigests.getCachedSha256(leader.file);
+        }
+
+        boolean isLedBy(TestflightUploader.UploadRequest ur) {
+            return leader == ur;
+        }
+
+        /**
+         * Called by the leader once its upload is done, with the response, or null if it failed.
+         */
+        void land(Map response) {
+            this.response = response;
+            synchronized (flights) {
+                flights.remove(this);
+            }
+            landed.countDown();
+        }
+
+        /**
+         * Waits for the leader, and returns its response, or null if it failed.
+         */
+        Map await() throws InterruptedException {
+            landed.await();
+            return response;
+        }
+
+        // null if the file couldn't be read, it then matches no other upload
+        private synchronized String getSha256() {
+            if (sha256 == null) {
+                try {
+                    sha256 = ArtifactDigests.sha256(leader.file);
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+            return sha256;
+        }
+
+        private String getDsymSha256() {
+            try {
+                return UploadCoalescer.getDsymSha256(leader);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+}
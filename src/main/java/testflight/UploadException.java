@@ -5,7 +5,8 @@ import org.apache.http.HttpResponse;
 public class UploadException extends RuntimeException {
     private final int statusCode;
     private final String responseBody;
-    private final HttpResponse response;
+    // not serializable, and only meaningful where the upload ran
+    private final transient HttpResponse response;
 
     public UploadException(int statusCode, String responseBody, HttpResponse response) {
         this.statusCode = statusCode;
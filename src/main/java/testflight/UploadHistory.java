@@ -0,0 +1,102 @@
+package testflight;
+
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The files a project uploaded to TestFlight, kept in the project directory so that a build uploading a file identical
+ * to one already sent to the same team can reuse the links of that upload instead.
+ * <p/>
+ * Teams are recorded by a hash of their token, not the token itself.
+ */
+public class UploadHistory {
+    private static final Logger LOGGER = Logger.getLogger(UploadHistory.class.getName());
+    private static final String FILE_NAME = "testflight-uploads.xml";
+    // the oldest uploads are forgotten first
+    private static final int MAX_UPLOADS = 100;
+
+    private final List<Entry> uploads = new ArrayList<Entry>();
+
+    /**
+     * Returns the files the project already uploaded to the team of the token, the most recent first.
+     */
+    static List<PreviousUpload> getPreviousUploads(AbstractProject<?, ?> project, String teamToken) {
+        String team = ArtifactDigests.sha256(teamToken);
+        List<PreviousUpload> previousUploads = new ArrayList<PreviousUpload>();
+        synchronized (UploadHistory.class) {
+            for (Entry entry : load(project).uploads) {
+                if (entry.team.equals(team)) {
+                    previousUploads.add(entry.upload);
+                }
+            }
+        }
+        return previousUploads;
+    }
+
+    /**
+     * Records the files a build uploaded to the team of the token.
+     */
+    static void record(AbstractProject<?, ?> project, int buildNumber, String teamToken, List<UploadResult> results) throws IOException {
+        String team = ArtifactDigests.sha256(teamToken);
+        synchronized (UploadHistory.class) {
+            UploadHistory history = load(project);
+            boolean changed = false;
+            for (UploadResult result : results) {
+                if (result.isReused() || result.getSha256() == null)
+                    continue;
+                // a file sent again replaces its previous upload
+                for (Iterator<Entry> it = history.uploads.iterator(); it.hasNext(); ) {
+                    Entry entry = it.next();
+                    if (entry.team.equals(team) && entry.upload.getSha256().equals(result.getSha256())) {
+                        it.remove();
+                    }
+                }
+                history.uploads.add(0, new Entry(team, new PreviousUpload(result.getSha256(), result.getSize(),
+                        result.getInstallUrl(), result.getConfigUrl(), buildNumber)));
+                changed = true;
+            }
+            if (!changed)
+                return;
+            while (history.uploads.size() > MAX_UPLOADS) {
+                history.uploads.remove(history.uploads.size() - 1);
+            }
+            getFile(project).write(history);
+        }
+    }
+
+    private static UploadHistory load(AbstractProject<?, ?> project) {
+        XmlFile file = getFile(project);
+        if (file.exists()) {
+            try {
+                return (UploadHistory) file.read();
+            } catch (IOException e) {
+                // uploads will just not be skipped until the file is written again
+                LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+            }
+        }
+        return new UploadHistory();
+    }
+
+    private static XmlFile getFile(AbstractProject<?, ?> project) {
+        return new XmlFile(Hudson.XSTREAM, new File(project.getRootDir(), FILE_NAME));
+    }
+
+    private static class Entry {
+        final String team;
+        final PreviousUpload upload;
+
+        Entry(String team, PreviousUpload upload) {
+            this.team = team;
+            this.upload = upload;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package testflight;
+
+import hudson.remoting.Callable;
+
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts the uploads run in this JVM (master or slave) for each token pair, and publishes the counts as MBeans named
+ * <code>testflight:type=UploadMetrics,tokenPair=&lt;name&gt;</code>.
+ * <p/>
+ * The uploads are counted by {@link TestflightUploader} on the node holding the workspace, except for the wait for
+ * upload slots, which happens on the master. {@link TestflightMetricsAction} gathers the counts of all the nodes.
+ */
+public final class UploadMetrics implements UploadMetricsMBean {
+    private static final Logger LOGGER = Logger.getLogger(UploadMetrics.class.getName());
+
+    /**
+     * The upper bounds of the buckets of the latency histograms.
+     */
+    static final long[] BUCKET_BOUNDS_MILLIS = {100, 500, 1000, 2000, 5000, 10000, 30000, 60000, 120000, 300000, 600000, 1800000};
+
+    /**
+     * The status counted for failures without an HTTP response, e.g. connection errors.
+     */
+    static final int NO_STATUS = 0;
+
+    private static final ConcurrentMap<String, UploadMetrics> metrics = new ConcurrentHashMap<String, UploadMetrics>();
+
+    private final String tokenPairName;
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final ConcurrentMap<Integer, AtomicLong> failures = new ConcurrentHashMap<Integer, AtomicLong>();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Histogram uploadLatency = new Histogram();
+    private final Histogram queueWait = new Histogram();
+
+    private UploadMetrics(String tokenPairName) {
+        this.tokenPairName = tokenPairName;
+    }
+
+    /**
+     * Returns the counts of the given token pair, registering their MBean the first time.
+     */
+    static UploadMetrics forTokenPair(String tokenPairName) {
+        String key = tokenPairName != null ? tokenPairName : "";
+        UploadMetrics m = metrics.get(key);
+        if (m == null) {
+            UploadMetrics created = new UploadMetrics(key);
+            m = metrics.putIfAbsent(key, created);
+            if (m == null) {
+                m = created;
+                register(m);
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Returns the counts of all the token pairs used in this JVM.
+     */
+    static List<Snapshot> snapshotAll() {
+        List<Snapshot> snapshots = new ArrayList<Snapshot>();
+        for (UploadMetrics m : new TreeMap<String, UploadMetrics>(metrics).values()) {
+            snapshots.add(m.snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * Forgets all the counts, and unregisters their MBeans.
+     */
+    static void clear() {
+        for (Iterator<UploadMetrics> it = metrics.values().iterator(); it.hasNext(); ) {
+            unregister(it.next());
+            it.remove();
+        }
+    }
+
+    void uploadStarted() {
+        started.incrementAndGet();
+        inFlight.incrementAndGet();
+    }
+
+    void uploadSucceeded(long millis) {
+        succeeded.incrementAndGet();
+        uploadLatency.record(millis);
+        inFlight.decrementAndGet();
+    }
+
+    void uploadFailed(int statusCode, long millis) {
+        AtomicLong count = failures.get(statusCode);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = failures.putIfAbsent(statusCode, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+        uploadLatency.record(millis);
+        inFlight.decrementAndGet();
+    }
+
+    void bytesSent(long bytes) {
+        bytesSent.addAndGet(bytes);
+    }
+
+    void retried() {
+        retries.incrementAndGet();
+    }
+
+    void waitedForSlots(long millis) {
+        queueWait.record(millis);
+    }
+
+    Snapshot snapshot() {
+        SortedMap<Integer, Long> failuresByStatus = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, AtomicLong> failure : failures.entrySet()) {
+            failuresByStatus.put(failure.getKey(), failure.getValue().get());
+        }
+        return new Snapshot(tokenPairName, started.get(), succeeded.get(), failuresByStatus, bytesSent.get(), retries.get(),
+                inFlight.get(), uploadLatency.snapshot(), queueWait.snapshot());
+    }
+
+    public String getTokenPairName() {
+        return tokenPairName;
+    }
+
+    public long getUploadsStarted() {
+        return started.get();
+    }
+
+    public long getUploadsSucceeded() {
+        return succeeded.get();
+    }
+
+    public long getUploadsFailed() {
+        return snapshot().getFailures();
+    }
+
+    public String getFailuresByStatus() {
+        StringBuilder s = new StringBuilder();
+        for (Map.Entry<Integer, Long> failure : snapshot().failuresByStatus.entrySet()) {
+            if (s.length() > 0) {
+                s.append(", ");
+            }
+            s.append(failure.getKey()).append('=').append(failure.getValue());
+        }
+        return s.toString();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public int getUploadsInFlight() {
+        return inFlight.get();
+    }
+
+    public long[] getLatencyBucketBoundsMillis() {
+        return BUCKET_BOUNDS_MILLIS.clone();
+    }
+
+    public long[] getUploadLatencyBucketCounts() {
+        return uploadLatency.snapshot().bucketCounts;
+    }
+
+    public long getUploadLatencySumMillis() {
+        return uploadLatency.snapshot().sumMillis;
+    }
+
+    public long[] getQueueWaitBucketCounts() {
+        return queueWait.snapshot().bucketCounts;
+    }
+
+    public long getQueueWaitSumMillis() {
+        return queueWait.snapshot().sumMillis;
+    }
+
+    /**
+     * Writes the counts of each node in the Prometheus text format, labeled with the node and the token pair.
+     */
+    static void writePrometheus(PrintWriter out, Map<String, List<Snapshot>> snapshotsByNode) {
+        writeCounter(out, snapshotsByNode, "testflight_uploads_started_total", "Uploads started.", new Value() {
+            long get(Snapshot s) {
+                return s.started;
+            }
+        });
+        writeCounter(out, snapshotsByNode, "testflight_uploads_succeeded_total", "Uploads that succeeded.", new Value() {
+            long get(Snapshot s) {
+                return s.succeeded;
+            }
+        });
+        writeHeader(out, "testflight_uploads_failed_total", "Uploads that failed, by HTTP status (0 without a response).", "counter");
+        for (Map.Entry<String, List<Snapshot>> node : snapshotsByNode.entrySet()) {
+            for (Snapshot s : node.getValue()) {
+                for (Map.Entry<Integer, Long> failure : s.failuresByStatus.entrySet()) {
+                    out.println("testflight_uploads_failed_total" + labels(node.getKey(), s, "status", String.valueOf(failure.getKey())) + " " + failure.getValue());
+                }
+            }
+        }
+        writeCounter(out, snapshotsByNode, "testflight_upload_bytes_sent_total", "Bytes sent, including the attempts that failed.", new Value() {
+            long get(Snapshot s) {
+                return s.bytesSent;
+            }
+        });
+        writeCounter(out, snapshotsByNode, "testflight_upload_retries_total", "Attempts retried after a failure.", new Value() {
+            long get(Snapshot s) {
+                return s.retries;
+            }
+        });
+        writeHeader(out, "testflight_uploads_in_flight", "Uploads running now.", "gauge");
+        for (Map.Entry<String, List<Snapshot>> node : snapshotsByNode.entrySet()) {
+            for (Snapshot s : node.getValue()) {
+                out.println("testflight_uploads_in_flight" + labels(node.getKey(), s, null, null) + " " + s.inFlight);
+            }
+        }
+        writeHistogram(out, snapshotsByNode, "testflight_upload_duration_seconds", "Time taken by the uploads, retries included.", false);
+        writeHistogram(out, snapshotsByNode, "testflight_upload_queue_wait_seconds", "Time the builds waited for upload slots, on the master.", true);
+        out.flush();
+    }
+
+    private abstract static class Value {
+        abstract long get(Snapshot s);
+    }
+
+    private static void writeCounter(PrintWriter out, Map<String, List<Snapshot>> snapshotsByNode, String name, String help, Value value) {
+        writeHeader(out, name, help, "counter");
+        for (Map.Entry<String, List<Snapshot>> node : snapshotsByNode.entrySet()) {
+            for (Snapshot s : node.getValue()) {
+                out.println(name + labels(node.getKey(), s, null, null) + " " + value.get(s));
+            }
+        }
+    }
+
+    private static void writeHistogram(PrintWriter out, Map<String, List<Snapshot>> snapshotsByNode, String name, String help, boolean queueWait) {
+        writeHeader(out, name, help, "histogram");
+        for (Map.Entry<String, List<Snapshot>> node : snapshotsByNode.entrySet()) {
+            for (Snapshot s : node.getValue()) {
+                HistogramSnapshot h = queueWait ? s.queueWait : s.uploadLatency;
+                if (h.count == 0)
+                    continue;
+                long cumulative = 0;
+                for (int i = 0; i < h.bucketCounts.length; i++) {
+                    cumulative += h.bucketCounts[i];
+                    String le = i < BUCKET_BOUNDS_MILLIS.length ? seconds(BUCKET_BOUNDS_MILLIS[i]) : "+Inf";
+                    out.println(name + "_bucket" + labels(node.getKey(), s, "le", le) + " " + cumulative);
+                }
+                out.println(name + "_sum" + labels(node.getKey(), s, null, null) + " " + seconds(h.sumMillis));
+                out.println(name + "_count" + labels(node.getKey(), s, null, null) + " " + h.count);
+            }
+        }
+    }
+
+    private static void writeHeader(PrintWriter out, String name, String help, String type) {
+        out.println("# HELP " + name + " " + help);
+        out.println("# TYPE " + name + " " + type);
+    }
+
+    private static String labels(String node, Snapshot s, String name, String value) {
+        StringBuilder labels = new StringBuilder("{node=\"").append(escape(node)).append("\",token_pair=\"").append(escape(s.tokenPairName)).append('"');
+        if (name != null) {
+            labels.append(',').append(name).append("=\"").append(escape(value)).append('"');
+        }
+        return labels.append('}').toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String seconds(long millis) {
+        return String.valueOf(millis / 1000.0);
+    }
+
+    private static void register(UploadMetrics m) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(m, getObjectName(m));
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to register the upload metrics of " + m.tokenPairName, e);
+        }
+    }
+
+    private static void unregister(UploadMetrics m) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(getObjectName(m))) {
+                server.unregisterMBean(getObjectName(m));
+            }
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to unregister the upload metrics of " + m.tokenPairName, e);
+        }
+    }
+
+    static ObjectName getObjectName(UploadMetrics m) throws JMException {
+        return new ObjectName("testflight:type=UploadMetrics,tokenPair=" + ObjectName.quote(m.tokenPairName));
+    }
+
+    /**
+     * Counts durations in the buckets of {@link #BUCKET_BOUNDS_MILLIS}.
+     */
+    private static class Histogram {
+        private final AtomicLongArray bucketCounts = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+        private final AtomicLong sumMillis = new AtomicLong();
+
+        void record(long millis) {
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MILLIS.length && millis > BUCKET_BOUNDS_MILLIS[bucket]) {
+                bucket++;
+            }
+            bucketCounts.incrementAndGet(bucket);
+            sumMillis.addAndGet(millis);
+        }
+
+        HistogramSnapshot snapshot() {
+            long[] counts = new long[bucketCounts.length()];
+            long count = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = bucketCounts.get(i);
+                count += counts[i];
+            }
+            return new HistogramSnapshot(counts, sumMillis.get(), count);
+        }
+    }
+
+    static class HistogramSnapshot implements Serializable {
+        final long[] bucketCounts;
+        final long sumMillis;
+        final long count;
+
+        HistogramSnapshot(long[] bucketCounts, long sumMillis, long count) {
+            this.bucketCounts = bucketCounts;
+            this.sumMillis = sumMillis;
+            this.count = count;
+        }
+    }
+
+    /**
+     * The counts of a token pair at one point in time, sent from the nodes to the master.
+     */
+    static class Snapshot implements Serializable {
+        final String tokenPairName;
+        final long started;
+        final long succeeded;
+        final SortedMap<Integer, Long> failuresByStatus;
+        final long bytesSent;
+        final long retries;
+        final int inFlight;
+        final HistogramSnapshot uploadLatency;
+        final HistogramSnapshot queueWait;
+
+        Snapshot(String tokenPairName, long started, long succeeded, SortedMap<Integer, Long> failuresByStatus, long bytesSent,
+                 long retries, int inFlight, HistogramSnapshot uploadLatency, HistogramSnapshot queueWait) {
+            this.tokenPairName = tokenPairName;
+            this.started = started;
+            this.succeeded = succeeded;
+            this.failuresByStatus = failuresByStatus;
+            this.bytesSent = bytesSent;
+            this.retries = retries;
+            this.inFlight = inFlight;
+            this.uploadLatency = uploadLatency;
+            this.queueWait = queueWait;
+        }
+
+        long getFailures() {
+            long failures = 0;
+            for (long count : failuresByStatus.values()) {
+                failures += count;
+            }
+            return failures;
+        }
+    }
+
+    /**
+     * Returns the counts of the JVM it is called in.
+     */
+    static class SnapshotCallable implements Callable<List<Snapshot>, RuntimeException>, Serializable {
+        public List<Snapshot> call() {
+            return snapshotAll();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package testflight;
+
+/**
+ * The upload counters of a token pair in one JVM, as seen through JMX.
+ *
+ * @see UploadMetrics
+ */
+public interface UploadMetricsMBean {
+    String getTokenPairName();
+
+    long getUploadsStarted();
+
+    long getUploadsSucceeded();
+
+    long getUploadsFailed();
+
+    /**
+     * The failed uploads for each HTTP status, e.g. <code>401=2, 503=1</code>. Failures without a response count under 0.
+     */
+    String getFailuresByStatus();
+
+    long getBytesSent();
+
+    long getRetries();
+
+    int getUploadsInFlight();
+
+    long[] getLatencyBucketBoundsMillis();
+
+    /**
+     * The number of uploads that took at most the matching bound of {@link #getLatencyBucketBoundsMillis()}, and more than
+     * the previous one. The last count is of the uploads that took longer than all the bounds.
+     */
+    long[] getUploadLatencyBucketCounts();
+
+    long getUploadLatencySumMillis();
+
+    long[] getQueueWaitBucketCounts();
+
+    long getQueueWaitSumMillis();
+}
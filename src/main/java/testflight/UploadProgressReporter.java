@@ -0,0 +1,83 @@
+package testflight;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically logs how far an upload went: percentage, speed over the last interval and estimated time left.
+ */
+class UploadProgressReporter implements Runnable {
+    private final CountingHttpEntity entity;
+    private final ThrottledHttpEntity throttle;
+    private final long totalBytes;
+    private final TestflightUploader.Logger logger;
+    private long lastBytes;
+    private long lastMillis;
+    private ScheduledFuture<?> future;
+
+    private UploadProgressReporter(CountingHttpEntity entity, ThrottledHttpEntity throttle, TestflightUploader.Logger logger) {
+        this.entity = entity;
+        this.throttle = throttle;
+        this.totalBytes = entity.getContentLength();
+        this.logger = logger;
+        this.lastMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @param throttle the bandwidth limiter of the upload, if any, to report the rate it is shaped to
+     */
+    static UploadProgressReporter start(CountingHttpEntity entity, ThrottledHttpEntity throttle, TestflightUploader.Logger logger, int intervalSeconds) {
+        UploadProgressReporter reporter = new UploadProgressReporter(entity, throttle, logger);
+        reporter.future = TestflightUploader.getScheduler().scheduleAtFixedRate(reporter, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        return reporter;
+    }
+
+    public void run() {
+        if (entity.isFinished()) {
+            future.cancel(false);
+            return;
+        }
+        long bytes = entity.getBytesWritten();
+        long now = System.currentTimeMillis();
+        float speed = now > lastMillis ? ((bytes - lastBytes) * 8000.0f) / (now - lastMillis) : Float.NaN;
+        lastBytes = bytes;
+        lastMillis = now;
+
+        int percent = totalBytes > 0 ? (int) (bytes * 100 / totalBytes) : 0;
+        String eta = "?";
+        if (speed > 0 && totalBytes > 0) {
+            eta = prettyDuration((long) ((totalBytes - bytes) * 8000.0f / speed));
+        }
+        String total = totalBytes > 0 ? prettySize(totalBytes) : "?";
+        if (throttle != null) {
+            logger.logInfo(Messages.TestflightUploader_UploadProgressShaped(percent, prettySize(bytes), total,
+                    TestflightRemoteRecorder.prettySpeed(speed), eta, TestflightRemoteRecorder.prettySpeed(throttle.getShapedSpeed())));
+        } else {
+            logger.logInfo(Messages.TestflightUploader_UploadProgress(percent, prettySize(bytes), total,
+                    TestflightRemoteRecorder.prettySpeed(speed), eta));
+        }
+    }
+
+    void stop() {
+        future.cancel(false);
+    }
+
+    static String prettySize(long bytes) {
+        String[] units = {"B", "KB", "MB", "GB"};
+        float size = bytes;
+        int idx = 0;
+        while (size > 1024 && idx < units.length - 1) {
+            size /= 1024;
+            idx += 1;
+        }
+        return String.format("%.1f", size) + units[idx];
+    }
+
+    static String prettyDuration(long millis) {
+        long seconds = millis / 1000;
+        if (seconds < 60) {
+            return seconds + "s";
+        }
+        return (seconds / 60) + "m" + (seconds % 60) + "s";
+    }
+}
@@ -0,0 +1,92 @@
+package testflight;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * What the master needs to know about one file uploaded to TestFlight.
+ */
+public class UploadResult implements Serializable {
+    private final String fileName;
+    private final String installUrl;
+    private final String configUrl;
+    private final UploadTimings timings;
+    private final String sha256;
+    private final String md5;
+    private final long size;
+    private final boolean reused;
+    // the request uploading the dSYM of the file, when it was left for later
+    TestflightUploader.UploadRequest deferredDsym;
+
+    public UploadResult(String fileName, String installUrl, String configUrl, UploadTimings timings) {
+        this(fileName, installUrl, configUrl, timings, null, null, 0, false);
+    }
+
+    public UploadResult(String fileName, String installUrl, String configUrl, UploadTimings timings, String sha256, String md5, long size, boolean reused) {
+        this.fileName = fileName;
+        this.installUrl = installUrl;
+        this.configUrl = configUrl;
+        this.timings = timings;
+        this.sha256 = sha256;
+        this.md5 = md5;
+        this.size = size;
+        this.reused = reused;
+    }
+
+    static UploadResult fromResponse(File file, Map response, UploadTimings timings, ArtifactDigests.Digests digests) {
+        return new UploadResult(file.getName(), (String) response.get("install_url"), (String) response.get("config_url"), timings,
+                digests != null ? digests.getSha256() : null, digests != null ? digests.getMd5() : null, file.length(), false);
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getInstallUrl() {
+        return installUrl;
+    }
+
+    public String getConfigUrl() {
+        return configUrl;
+    }
+
+    /**
+     * The timings of the request, or null if they weren't measured.
+     */
+    public UploadTimings getTimings() {
+        return timings;
+    }
+
+    /**
+     * The SHA-256 of the uploaded file, or null if it wasn't computed.
+     */
+    public String getSha256() {
+        return sha256;
+    }
+
+    /**
+     * The MD5 of the uploaded file, as used by Jenkins fingerprints, or null if it wasn't computed.
+     */
+    public String getMd5() {
+        return md5;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Whether the file wasn't sent, an identical one having already been uploaded to the team.
+     */
+    public boolean isReused() {
+        return reused;
+    }
+
+    /**
+     * The request to send to upload the dSYM of the file, when it wasn't sent with it, null otherwise.
+     */
+    TestflightUploader.UploadRequest getDeferredDsym() {
+        return deferredDsym;
+    }
+}
@@ -0,0 +1,153 @@
+package testflight;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Limits the number of uploads running at the same time, on each node and on the whole instance.
+ * <p/>
+ * Waiting uploads are granted their slots by priority, then in arrival order. An upload blocked by the limit of
+ * the instance keeps the remaining slots for itself, so that lower priority uploads can't starve it, while an upload
+ * blocked by the limit of its node lets the uploads of the other nodes go ahead.
+ * <p/>
+ * Runs on the master, around the remote call uploading the files of a build.
+ */
+class UploadScheduler {
+    enum Priority {
+        HIGH, NORMAL, LOW;
+
+        static Priority parse(String priority) {
+            if (priority != null) {
+                for (Priority p : values()) {
+                    if (p.name().equalsIgnoreCase(priority.trim()))
+                        return p;
+                }
+            }
+            return NORMAL;
+        }
+    }
+
+    private static final UploadScheduler INSTANCE = new UploadScheduler();
+
+    private final List<Ticket> waiting = new ArrayList<Ticket>();
+    private final Map<String, Integer> runningPerNode = new HashMap<String, Integer>();
+    private int running;
+    private long sequence;
+
+    static UploadScheduler get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Waits until the given number of uploads may start on the node, and reserves them.
+     *
+     * @param maxUploads        the limit for the whole instance, 0 for none
+     * @param maxUploadsPerNode the limit for each node, 0 for none
+     */
+    Ticket acquire(String node, int uploads, Priority priority, int maxUploads, int maxUploadsPerNode) throws InterruptedException {
+        // never ask for more than the limits, or we'd wait forever
+        if (maxUploads > 0)
+            uploads = Math.min(uploads, maxUploads);
+        if (maxUploadsPerNode > 0)
+            uploads = Math.min(uploads, maxUploadsPerNode);
+
+        synchronized (this) {
+            Ticket ticket = new Ticket(node, Math.max(1, uploads), priority, sequence++, maxUploads, maxUploadsPerNode);
+            waiting.add(ticket);
+            try {
+                while (!canStart(ticket)) {
+                    wait();
+                }
+            } finally {
+                waiting.remove(ticket);
+                // our leaving may unblock the ones behind us
+                notifyAll();
+            }
+            running += ticket.uploads;
+            runningPerNode.put(node, getRunning(node) + ticket.uploads);
+            ticket.startMillis = System.currentTimeMillis();
+            return ticket;
+        }
+    }
+
+    synchronized void release(Ticket ticket) {
+        running -= ticket.uploads;
+        runningPerNode.put(ticket.node, getRunning(ticket.node) - ticket.uploads);
+        if (getRunning(ticket.node) == 0) {
+            runningPerNode.remove(ticket.node);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Simulates granting slots to the waiting uploads by priority, to see whether the given one gets its slots.
+     */
+    private boolean canStart(Ticket ticket) {
+        List<Ticket> queue = new ArrayList<Ticket>(waiting);
+        Collections.sort(queue);
+        int available = Integer.MAX_VALUE;
+        Map<String, Integer> reservedPerNode = new HashMap<String, Integer>();
+        int reserved = 0;
+        for (Ticket t : queue) {
+            if (t.maxUploads > 0) {
+                available = Math.min(available, t.maxUploads - running - reserved);
+            }
+            int nodeReserved = reservedPerNode.containsKey(t.node) ? reservedPerNode.get(t.node) : 0;
+            boolean nodeFits = t.maxUploadsPerNode <= 0 || getRunning(t.node) + nodeReserved + t.uploads <= t.maxUploadsPerNode;
+            boolean instanceFits = available >= t.uploads;
+            if (nodeFits && instanceFits) {
+                if (t == ticket)
+                    return true;
+                reserved += t.uploads;
+                available -= t.uploads;
+                reservedPerNode.put(t.node, nodeReserved + t.uploads);
+            } else if (!instanceFits) {
+                // keep what is left of the instance for this one
+                return false;
+            }
+        }
+        return false;
+    }
+
+    synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    private int getRunning(String node) {
+        Integer n = runningPerNode.get(node);
+        return n != null ? n : 0;
+    }
+
+    static class Ticket implements Comparable<Ticket> {
+        final String node;
+        final int uploads;
+        final Priority priority;
+        final long sequence;
+        final int maxUploads;
+        final int maxUploadsPerNode;
+        final long queuedMillis = System.currentTimeMillis();
+        long startMillis;
+
+        Ticket(String node, int uploads, Priority priority, long sequence, int maxUploads, int maxUploadsPerNode) {
+            this.node = node;
+            this.uploads = uploads;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.maxUploads = maxUploads;
+            this.maxUploadsPerNode = maxUploadsPerNode;
+        }
+
+        long getWaitMillis() {
+            return startMillis - queuedMillis;
+        }
+
+        public int compareTo(Ticket o) {
+            if (priority != o.priority)
+                return priority.compareTo(o.priority);
+            return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
+    }
+}
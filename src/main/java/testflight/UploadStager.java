@@ -0,0 +1,91 @@
+package testflight;
+
+import hudson.model.BuildListener;
+import hudson.remoting.Callable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Copies the files the teams of a build upload out of the workspace, so that they can be uploaded in the background
+ * once the build is over and the next build may overwrite them.
+ * <p/>
+ * Returns one request per file, for its copy. The files of requests having one are copied as is, instead of being
+ * searched for.
+ */
+public class UploadStager implements Callable<UploadStager.StagedUploads, Throwable>, Serializable {
+    final private String remoteWorkspace;
+    final private List<TestflightUploader.UploadRequest> uploadRequests;
+    final private BuildListener listener;
+
+    public UploadStager(String remoteWorkspace, List<TestflightUploader.UploadRequest> uploadRequests, BuildListener listener) {
+        this.remoteWorkspace = remoteWorkspace;
+        this.uploadRequests = uploadRequests;
+        this.listener = listener;
+    }
+
+    public StagedUploads call() throws Throwable {
+        File stagingDir = File.createTempFile("testflight", "-staging");
+        if (!stagingDir.delete() || !stagingDir.mkdir())
+            throw new IOException("Failed to create " + stagingDir);
+
+        StagedUploads staged = new StagedUploads(stagingDir.getPath());
+        try {
+            for (TestflightUploader.UploadRequest teamRequest : uploadRequests) {
+                List<TestflightUploader.UploadRequest> requests = teamRequest.file != null
+                        ? Collections.singletonList(TestflightUploader.UploadRequest.copy(teamRequest))
+                        : new TestflightRemoteRecorder(remoteWorkspace, teamRequest, listener).resolveFiles();
+                if (requests.isEmpty()) {
+                    staged.teamsWithoutFiles.add(teamRequest);
+                }
+                for (TestflightUploader.UploadRequest ur : requests) {
+                    // one directory per file, so that the dSYM search finds nothing but its own
+                    File dir = new File(stagingDir, String.valueOf(staged.requests.size()));
+                    File copy = new File(dir, ur.file.getName());
+                    // hashed while copied, so that neither the copy nor the file has to be read again for it
+                    ArtifactDigests.copy(ur.file, copy);
+                    ur.filePaths = copy.getPath();
+                    ur.dsymPath = ur.dsymFile != null ? stage(ur.dsymFile, dir).getPath() : null;
+                    ur.file = null;
+                    ur.dsymFile = null;
+                    ur.scanPatterns = null;
+                    ur.scanId = null;
+                    staged.requests.add(ur);
+                }
+            }
+        } catch (Throwable t) {
+            FileUtils.deleteDirectory(stagingDir);
+            throw t;
+        }
+        return staged;
+    }
+
+    private static File stage(File file, File dir) throws IOException {
+        File copy = new File(dir, file.getName());
+        if (file.isDirectory()) {
+            FileUtils.copyDirectory(file, copy);
+        } else {
+            FileUtils.copyFile(file, copy);
+        }
+        return copy;
+    }
+
+    public static class StagedUploads implements Serializable {
+        /**
+         * Where the files were copied to, on the node of the workspace.
+         */
+        final String stagingDir;
+        final List<TestflightUploader.UploadRequest> requests = new ArrayList<TestflightUploader.UploadRequest>();
+        final List<TestflightUploader.UploadRequest> teamsWithoutFiles = new ArrayList<TestflightUploader.UploadRequest>();
+
+        StagedUploads(String stagingDir) {
+            this.stagingDir = stagingDir;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package testflight;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an upload was aborted because its throughput stayed under the configured minimum.
+ */
+public class UploadStalledException extends IOException {
+    private final long bytesSent;
+
+    public UploadStalledException(String message, long bytesSent) {
+        super(message);
+        this.bytesSent = bytesSent;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+}
@@ -0,0 +1,70 @@
+package testflight;
+
+import java.io.Serializable;
+
+/**
+ * Where the time of one upload request went.
+ */
+public class UploadTimings implements Serializable {
+    /**
+     * Finding the dSYM of the file.
+     */
+    long dsymMillis;
+    /**
+     * From sending the request to starting to write its body: connection, TLS handshake and request headers.
+     */
+    long connectMillis;
+    /**
+     * Writing the body.
+     */
+    long bodyMillis;
+    /**
+     * From the last byte of the body to the response.
+     */
+    long responseMillis;
+    long bytes;
+
+    public long getDsymMillis() {
+        return dsymMillis;
+    }
+
+    public long getConnectMillis() {
+        return connectMillis;
+    }
+
+    public long getBodyMillis() {
+        return bodyMillis;
+    }
+
+    public long getResponseMillis() {
+        return responseMillis;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * The time of the request, without finding the files.
+     */
+    public long getTotalMillis() {
+        return connectMillis + bodyMillis + responseMillis;
+    }
+
+    /**
+     * The time of the request, and of finding the dSYM before it.
+     */
+    public long getOverallMillis() {
+        return dsymMillis + getTotalMillis();
+    }
+
+    /**
+     * The speed at which the body was sent, in bits per second.
+     */
+    public float getBodySpeed() {
+        if (bodyMillis == 0) {
+            return Float.NaN;
+        }
+        return (bytes * 8000.0f) / bodyMillis;
+    }
+}
@@ -0,0 +1,80 @@
+package testflight;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aborts an upload whose throughput stays under a minimum for a whole period.
+ * <p/>
+ * Only the sending of the body is watched: the periods start when the first byte is written, so waiting for a pooled
+ * connection, connecting and waiting for the 100-continue don't count, and once the body is sent, waiting for the
+ * response is bounded by the read timeout.
+ */
+class UploadWatchdog implements Runnable {
+    private final HttpUriRequest request;
+    private final CountingHttpEntity entity;
+    private final long minBytesPerSecond;
+    private final int periodSeconds;
+    // when the body started to be written, and when the current period started, or 0 before the body is written
+    private long writeStartMillis;
+    private long periodStartMillis;
+    private long bytesAtPeriodStart;
+    private volatile boolean stalled;
+    private ScheduledFuture<?> future;
+
+    private UploadWatchdog(HttpUriRequest request, CountingHttpEntity entity, long minBytesPerSecond, int periodSeconds) {
+        this.request = request;
+        this.entity = entity;
+        this.minBytesPerSecond = minBytesPerSecond;
+        this.periodSeconds = periodSeconds;
+    }
+
+    static UploadWatchdog start(HttpUriRequest request, CountingHttpEntity entity, long minBytesPerSecond, int periodSeconds) {
+        UploadWatchdog watchdog = new UploadWatchdog(request, entity, minBytesPerSecond, periodSeconds);
+        // checks every second whether a period is over, as they start whenever the body does
+        watchdog.future = TestflightUploader.getScheduler().scheduleAtFixedRate(watchdog, 1, 1, TimeUnit.SECONDS);
+        return watchdog;
+    }
+
+    public void run() {
+        if (entity.isFinished()) {
+            future.cancel(false);
+            return;
+        }
+        long writeStart = entity.getWriteStartMillis();
+        if (writeStart == 0)
+            return;
+        if (writeStart != writeStartMillis) {
+            // the body started to be written, or started over
+            writeStartMillis = writeStart;
+            periodStartMillis = writeStart;
+            bytesAtPeriodStart = 0;
+        }
+        long now = System.currentTimeMillis();
+        long elapsedMillis = now - periodStartMillis;
+        if (elapsedMillis < periodSeconds * 1000L)
+            return;
+        long bytes = entity.getBytesWritten();
+        if (bytes - bytesAtPeriodStart < minBytesPerSecond * elapsedMillis / 1000) {
+            stalled = true;
+            future.cancel(false);
+            request.abort();
+        }
+        periodStartMillis = now;
+        bytesAtPeriodStart = bytes;
+    }
+
+    void stop() {
+        future.cancel(false);
+    }
+
+    boolean isStalled() {
+        return stalled;
+    }
+
+    long getBytesSent() {
+        return entity.getBytesWritten();
+    }
+}
@@ -0,0 +1,63 @@
+package testflight;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import hudson.Util;
+
+import org.apache.http.entity.mime.content.FileBody;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static testflight.TestFixtures.write;
+
+public class ArtifactDigestsTest {
+    private static final String ABC_SHA256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+    private static final String ABC_MD5 = "900150983cd24fb0d6963f7d28e17f72";
+
+    @Test
+    public void digestIsCachedUntilTheFileChanges() throws Exception {
+        File file = new File(Util.createTempDir(), "test.ipa");
+        write(file, "abc");
+        assertNull(ArtifactDigests.getCachedSha256(file));
+        assertEquals(ABC_SHA256, ArtifactDigests.sha256(file));
+        assertEquals(ABC_SHA256, ArtifactDigests.getCachedSha256(file));
+        assertEquals(ABC_MD5, ArtifactDigests.getCachedDigests(file).getMd5());
+
+        write(file, "abcd");
+        assertNull(ArtifactDigests.getCachedSha256(file));
+    }
+
+    @Test
+    public void digestIsComputedFromTheBytesSent() throws Exception {
+        File file = new File(Util.createTempDir(), "test.ipa");
+        write(file, "abc");
+        BufferedMultipartEntity entity = new BufferedMultipartEntity();
+        entity.addPart("file", new FileBody(file));
+        entity.digestWhileWriting(file);
+
+        entity.writeTo(new ByteArrayOutputStream());
+
+        assertEquals(ABC_SHA256, ArtifactDigests.getCachedSha256(file));
+        assertEquals(ABC_MD5, ArtifactDigests.getCachedDigests(file).getMd5());
+    }
+
+    @Test
+    public void digestIsComputedFromTheBytesCopied() throws Exception {
+        File dir = Util.createTempDir();
+        File file = write(new File(dir, "test.ipa"), "abc");
+        File copy = new File(dir, "staging/test.ipa");
+
+        ArtifactDigests.copy(file, copy);
+
+        assertEquals(ABC_SHA256, ArtifactDigests.getCachedSha256(file));
+        assertEquals(ABC_SHA256, ArtifactDigests.getCachedSha256(copy));
+        assertEquals(ABC_MD5, ArtifactDigests.getCachedDigests(copy).getMd5());
+    }
+
+    @Test
+    public void digestOfString() {
+        assertEquals(ABC_SHA256, ArtifactDigests.sha256("abc"));
+    }
+}
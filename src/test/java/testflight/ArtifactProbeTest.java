@@ -0,0 +1,72 @@
+package testflight;
+
+import hudson.Util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static testflight.TestFixtures.createListener;
+import static testflight.TestFixtures.write;
+
+public class ArtifactProbeTest {
+    @Test
+    public void changesUntilTheFilesAreComplete() throws Throwable {
+        File workspace = Util.createTempDir();
+        List<TestflightUploader.UploadRequest> urList = createUploadRequests("**/*.ipa");
+
+        assertNull(probe(workspace, urList, null));
+
+        File ipa = new File(workspace, "build/app.ipa");
+        write(ipa, "partial");
+        ArtifactProbe.Files partial = probe(workspace, urList, null);
+        assertNotNull(partial);
+
+        write(ipa, "partial and complete");
+        ArtifactProbe.Files complete = probe(workspace, urList, partial);
+        assertFalse(partial.equals(complete));
+        assertEquals(complete, probe(workspace, urList, complete));
+    }
+
+    @Test
+    public void onlySearchesTheWorkspaceAgainWhenAFileGoesAway() throws Throwable {
+        File workspace = Util.createTempDir();
+        List<TestflightUploader.UploadRequest> urList = createUploadRequests("**/*.ipa", "**/*.apk");
+        File ipa = new File(workspace, "build/app.ipa");
+        File apk = new File(workspace, "android/app.apk");
+        write(ipa, "ipa");
+        write(apk, "apk");
+        ArtifactProbe.Files found = probe(workspace, urList, null);
+        assertTrue(found.toString().contains(ipa.getPath()));
+        assertTrue(found.toString().contains(apk.getPath()));
+
+        File otherIpa = new File(workspace, "build/other.ipa");
+        write(otherIpa, "other");
+        assertEquals(found, probe(workspace, urList, found));
+
+        ipa.delete();
+        ArtifactProbe.Files searched = probe(workspace, urList, found);
+        assertTrue(searched.toString().contains(otherIpa.getPath()));
+    }
+
+    private static ArtifactProbe.Files probe(File workspace, List<TestflightUploader.UploadRequest> urList, ArtifactProbe.Files previous) throws Throwable {
+        return new ArtifactProbe(workspace.getPath(), urList, previous, createListener()).call();
+    }
+
+    private static List<TestflightUploader.UploadRequest> createUploadRequests(String... filePaths) {
+        List<TestflightUploader.UploadRequest> urList = new ArrayList<TestflightUploader.UploadRequest>();
+        for (String filePath : filePaths) {
+            TestflightUploader.UploadRequest ur = new TestflightUploader.UploadRequest();
+            ur.filePaths = filePath;
+            urList.add(ur);
+        }
+        return urList;
+    }
+}
@@ -0,0 +1,61 @@
+package testflight;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import hudson.Util;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static testflight.TestFixtures.touch;
+
+public class ArtifactScannerTest {
+    static File tmpDir;
+    static File ipa;
+    static File apk;
+    static File dsym;
+
+    @BeforeClass
+    public static void SetUpDirectoryLayout() throws IOException {
+        tmpDir = Util.createTempDir();
+        ipa = createFile("build/app.ipa");
+        dsym = createFile("build/app.dSYM.zip");
+        apk = createFile("android/bin/app.apk");
+        createFile(".git/lib.ipa");
+        createFile("Pods/Lib/lib.ipa");
+        createFile("DerivedData/Products/app.ipa");
+    }
+
+    @Test
+    public void skipsExcludedAndDefaultExcludedDirectories() throws IOException {
+        ArtifactScanner.ScanResult result = new ArtifactScanner(tmpDir, "**/*.ipa, **/*.apk", "**/DerivedData, **/Pods").scan();
+
+        assertEquals(Arrays.asList(apk, ipa), result.getFiles());
+        assertNotNull(result.getDsym(dsym));
+        assertNull(result.getDsym(new File(tmpDir, "build/other.dSYM.zip")));
+    }
+
+    @Test
+    public void walksIntoDependencyDirectoriesUnlessExcluded() throws IOException {
+        ArtifactScanner.ScanResult result = new ArtifactScanner(tmpDir, "**/*.ipa", "**/DerivedData").scan();
+
+        assertEquals(Arrays.asList(new File(tmpDir, "Pods/Lib/lib.ipa"), ipa), result.getFiles());
+    }
+
+    @Test
+    public void selectsTheFilesOfOneTeam() throws IOException {
+        ArtifactScanner.ScanResult result = new ArtifactScanner(tmpDir, "build/*.ipa, **/*.apk", "**/DerivedData").scan();
+
+        assertEquals(Arrays.asList(ipa), result.select("build/*.ipa"));
+        assertEquals(Arrays.asList(apk), result.select("**/*.apk"));
+    }
+
+    private static File createFile(String path) throws IOException {
+        return touch(new File(tmpDir, path));
+    }
+}
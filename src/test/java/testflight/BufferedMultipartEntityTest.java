@@ -0,0 +1,71 @@
+package testflight;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import hudson.Util;
+
+import org.apache.http.entity.mime.content.FileBody;
+import org.apache.http.entity.mime.content.StringBody;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BufferedMultipartEntityTest {
+    @Test
+    public void contentLengthMatchesWrittenBytes() throws IOException {
+        File ipa = new File(Util.createTempDir(), "test.ipa");
+        FileOutputStream out = new FileOutputStream(ipa);
+        out.write(new byte[100000]);
+        out.close();
+
+        BufferedMultipartEntity entity = new BufferedMultipartEntity();
+        entity.addPart("api_token", new StringBody("token"));
+        entity.addPart("notes", new StringBody("notes \u2014 author", "text/plain", Charset.forName("UTF-8")));
+        entity.addPart("file", new FileBody(ipa));
+
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        entity.writeTo(written);
+
+        assertEquals(entity.getContentLength(), written.size());
+        String body = written.toString("ISO-8859-1");
+        assertTrue(body.contains("Content-Disposition: form-data; name=\"file\"; filename=\"test.ipa\""));
+        assertTrue(body.endsWith("--\r\n"));
+    }
+
+    @Test
+    public void dsymDirectoryIsZippedWhileSent() throws IOException {
+        File dsym = new File(Util.createTempDir(), "test.app.dSYM");
+        new File(dsym, "Contents/Resources/DWARF").mkdirs();
+        FileOutputStream out = new FileOutputStream(new File(dsym, "Contents/Resources/DWARF/test"));
+        out.write(new byte[100000]);
+        out.close();
+
+        BufferedMultipartEntity entity = new BufferedMultipartEntity();
+        entity.addPart("api_token", new StringBody("token"));
+        entity.addPart("dsym", new DsymZipBody(dsym));
+
+        assertEquals(-1, entity.getContentLength());
+        assertTrue(entity.isChunked());
+
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        new DsymZipBody(dsym).writeTo(zip);
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()));
+        List<String> names = new ArrayList<String>();
+        for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+            names.add(entry.getName());
+        }
+        assertEquals(Arrays.asList("test.app.dSYM/", "test.app.dSYM/Contents/", "test.app.dSYM/Contents/Resources/",
+                "test.app.dSYM/Contents/Resources/DWARF/", "test.app.dSYM/Contents/Resources/DWARF/test"), names);
+    }
+}
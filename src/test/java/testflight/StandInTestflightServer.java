@@ -0,0 +1,367 @@
+package testflight;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.simple.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stands in for the TestFlight upload API in tests: accepts the same multipart form on <code>/api/builds.json</code>,
+ * answers like TestFlight does, and can be told to answer slowly, read slowly or fail.
+ */
+class StandInTestflightServer {
+    static final String BUILDS_PATH = "/api/builds.json";
+
+    private static final Pattern BOUNDARY = Pattern.compile("boundary=\"?([^\";]+)\"?");
+    private static final Pattern PART_NAME = Pattern.compile("\\bname=\"([^\"]*)\"");
+
+    private final HttpServer server;
+    private final AtomicInteger buildIds = new AtomicInteger(1000);
+    private final Queue<Integer> errors = new LinkedList<Integer>();
+    private final List<Upload> uploads = Collections.synchronizedList(new ArrayList<Upload>());
+    private volatile long latencyMillis;
+    private volatile long maxBytesPerSecond;
+    private volatile String apiToken;
+    private volatile String teamToken;
+
+    StandInTestflightServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(BUILDS_PATH, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    StandInTestflightServer.this.handle(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    /**
+     * The URL to set as the endpoint of the uploads.
+     */
+    String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + BUILDS_PATH;
+    }
+
+    /**
+     * Waits this long after reading a request before answering it.
+     */
+    StandInTestflightServer withLatency(long millis) {
+        latencyMillis = millis;
+        return this;
+    }
+
+    /**
+     * Reads the request bodies at most this fast, 0 for no limit.
+     */
+    StandInTestflightServer withMaxBytesPerSecond(long bytesPerSecond) {
+        maxBytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Answers 401 to the requests with other tokens.
+     */
+    StandInTestflightServer withTokens(String apiToken, String teamToken) {
+        this.apiToken = apiToken;
+        this.teamToken = teamToken;
+        return this;
+    }
+
+    /**
+     * Answers the next requests with the given statuses, one each, before answering normally again.
+     */
+    StandInTestflightServer failNext(int... statusCodes) {
+        synchronized (errors) {
+            for (int statusCode : statusCodes) {
+                errors.add(statusCode);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Returns the requests received so far, including the failed ones.
+     */
+    List<Upload> getUploads() {
+        synchronized (uploads) {
+            return new ArrayList<Upload>(uploads);
+        }
+    }
+
+    void stop() {
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "Method not allowed");
+            return;
+        }
+        Upload upload = new Upload();
+        upload.startMillis = System.currentTimeMillis();
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        Matcher boundary = contentType != null ? BOUNDARY.matcher(contentType) : null;
+        if (boundary == null || !boundary.find()) {
+            respond(exchange, 400, "Expected a multipart/form-data request");
+            return;
+        }
+        InputStream body = exchange.getRequestBody();
+        if (maxBytesPerSecond > 0) {
+            body = new ThrottledInputStream(body, maxBytesPerSecond);
+        }
+        new MultipartReader(body, boundary.group(1)).readInto(upload);
+        uploads.add(upload);
+
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+
+        Integer error;
+        synchronized (errors) {
+            error = errors.poll();
+        }
+        upload.endMillis = System.currentTimeMillis();
+        if (error != null) {
+            respond(exchange, error, "Injected error " + error);
+            return;
+        }
+        if (apiToken != null && !apiToken.equals(upload.fields.get("api_token"))) {
+            respond(exchange, 401, "Invalid API token.");
+            return;
+        }
+        if (teamToken != null && !teamToken.equals(upload.fields.get("team_token"))) {
+            respond(exchange, 401, "Invalid team token.");
+            return;
+        }
+        if (!upload.files.containsKey("file")) {
+            respond(exchange, 400, "You must supply a file.");
+            return;
+        }
+        respond(exchange, 200, createResponse(upload));
+    }
+
+    private String createResponse(Upload upload) {
+        int buildId = buildIds.incrementAndGet();
+        String hash = Integer.toHexString(upload.files.get("file").hashCode() ^ buildId);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        Map<String, Object> json = new HashMap<String, Object>();
+        json.put("bundle_version", "1.0 (" + buildId + ")");
+        json.put("install_url", "https://testflightapp.com/install/" + hash + "/");
+        json.put("config_url", "https://testflightapp.com/dashboard/builds/report/" + buildId + "/");
+        json.put("created_at", dateFormat.format(new Date()));
+        json.put("device_family", "iPhone/iPod");
+        json.put("notify", "True".equals(upload.fields.get("notify")));
+        json.put("team", "Stand-in Team");
+        json.put("minimum_os_version", "5.0");
+        json.put("release_notes", upload.fields.get("notes"));
+        json.put("binary_size", upload.files.get("file"));
+        return JSONObject.toJSONString(json);
+    }
+
+    private static void respond(HttpExchange exchange, int statusCode, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", statusCode == 200 ? "application/json" : "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    /**
+     * A request received by the server.
+     */
+    static class Upload {
+        final Map<String, String> fields = new HashMap<String, String>();
+        // the size of each file part, by name
+        final Map<String, Long> files = new HashMap<String, Long>();
+        // when the request arrived, and when it was answered
+        long startMillis;
+        long endMillis;
+    }
+
+    /**
+     * Reads a multipart body as it arrives, keeping the text fields and only counting the bytes of the files, so that
+     * many large uploads at once don't need the memory to hold them.
+     */
+    private static class MultipartReader {
+        private final InputStream in;
+        private final byte[] buffer = new byte[64 * 1024];
+        private int position;
+        private int limit;
+        private final byte[] firstDelimiter;
+        private final byte[] delimiter;
+
+        MultipartReader(InputStream in, String boundary) throws IOException {
+            this.in = in;
+            firstDelimiter = ("--" + boundary).getBytes("ISO-8859-1");
+            delimiter = ("\r\n--" + boundary).getBytes("ISO-8859-1");
+        }
+
+        void readInto(Upload upload) throws IOException {
+            skipTo(firstDelimiter, null);
+            while (true) {
+                String end = readLine();
+                if (end.startsWith("--"))
+                    break;
+                String name = null;
+                boolean isFile = false;
+                for (String header = readLine(); header.length() > 0; header = readLine()) {
+                    Matcher matcher = PART_NAME.matcher(header);
+                    if (header.toLowerCase().startsWith("content-disposition:") && matcher.find()) {
+                        name = matcher.group(1);
+                        isFile = header.contains("filename=");
+                    }
+                }
+                ByteArrayOutputStream content = isFile ? null : new ByteArrayOutputStream();
+                long length = skipTo(delimiter, content);
+                if (name == null)
+                    continue;
+                if (isFile) {
+                    upload.files.put(name, length);
+                } else {
+                    upload.fields.put(name, new String(content.toByteArray(), 0, (int) length, "UTF-8"));
+                }
+            }
+            // the epilogue
+            while (read() != -1) {
+            }
+        }
+
+        /**
+         * Reads up to and including the given delimiter, and returns the number of bytes before it.
+         */
+        private long skipTo(byte[] delimiter, ByteArrayOutputStream content) throws IOException {
+            int[] fallback = fallback(delimiter);
+            long count = 0;
+            int matched = 0;
+            while (true) {
+                int b = read();
+                if (b == -1)
+                    throw new IOException("Truncated multipart body");
+                while (matched > 0 && b != (delimiter[matched] & 0xff)) {
+                    matched = fallback[matched - 1];
+                }
+                if (b == (delimiter[matched] & 0xff)) {
+                    matched++;
+                }
+                count++;
+                if (content != null) {
+                    content.write(b);
+                }
+                if (matched == delimiter.length)
+                    return count - delimiter.length;
+            }
+        }
+
+        // the length of the longest proper prefix of the delimiter that is also a suffix of its first i + 1 bytes
+        private static int[] fallback(byte[] delimiter) {
+            int[] fallback = new int[delimiter.length];
+            for (int i = 1, k = 0; i < delimiter.length; i++) {
+                while (k > 0 && delimiter[i] != delimiter[k]) {
+                    k = fallback[k - 1];
+                }
+                if (delimiter[i] == delimiter[k]) {
+                    k++;
+                }
+                fallback[i] = k;
+            }
+            return fallback;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (int b = read(); b != -1; b = read()) {
+                if (b == '\n')
+                    break;
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            return line.toString();
+        }
+
+        private int read() throws IOException {
+            if (position == limit) {
+                limit = in.read(buffer);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position++] & 0xff;
+        }
+    }
+
+    private static class ThrottledInputStream extends FilterInputStream {
+        private final long bytesPerSecond;
+        private final long startMillis = System.currentTimeMillis();
+        private long bytesRead;
+
+        ThrottledInputStream(InputStream in, long bytesPerSecond) {
+            super(in);
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            // reads at most a tenth of a second's worth at a time, then waits until that's on schedule
+            int n = super.read(b, off, (int) Math.max(1, Math.min(len, bytesPerSecond / 10)));
+            if (n > 0) {
+                bytesRead += n;
+                long dueMillis = startMillis + bytesRead * 1000 / bytesPerSecond;
+                long waitMillis = dueMillis - System.currentTimeMillis();
+                if (waitMillis > 0) {
+                    try {
+                        Thread.sleep(waitMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package testflight;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TeamUploadResultTest {
+    @Test
+    public void parallelTeamsWaitingForTheSameScanCountItOnce() {
+        // both teams waited for the one walk of the workspace, the second one from a little later
+        TeamUploadResult first = createTeamResult(1200);
+        TeamUploadResult second = createTeamResult(1150);
+        assertEquals(1200, TeamUploadResult.getScanMillis(Arrays.asList(first, second)));
+    }
+
+    @Test
+    public void sequentialTeamsOnlyWaitForTheFirstScan() {
+        // the second team found the scan of the first one cached
+        assertEquals(1200, TeamUploadResult.getScanMillis(Arrays.asList(createTeamResult(1200), createTeamResult(0))));
+    }
+
+    private static TeamUploadResult createTeamResult(long scanMillis) {
+        TeamUploadResult teamResult = new TeamUploadResult(new TestflightUploader.UploadRequest());
+        teamResult.scanMillis = scanMillis;
+        return teamResult;
+    }
+}
@@ -0,0 +1,51 @@
+package testflight;
+
+import hudson.model.BuildListener;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Helpers shared by the tests to set up workspaces and listeners.
+ */
+final class TestFixtures {
+    private TestFixtures() {
+    }
+
+    /**
+     * Returns a listener discarding what it is told.
+     */
+    static BuildListener createListener() {
+        BuildListener listener = mock(BuildListener.class);
+        when(listener.getLogger()).thenReturn(mock(PrintStream.class));
+        return listener;
+    }
+
+    /**
+     * Writes the file, and the directories above it if needed.
+     */
+    static File write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Creates an empty file, and the directories above it if needed.
+     */
+    static File touch(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        new FileOutputStream(file).close();
+        return file;
+    }
+}
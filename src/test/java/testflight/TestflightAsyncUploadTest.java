@@ -0,0 +1,78 @@
+package testflight;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.util.Secret;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class TestflightAsyncUploadTest extends HudsonTestCase {
+    private StandInTestflightServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // slow enough for the build to complete, and the project page to be looked at, before the upload does
+        server = new StandInTestflightServer().withLatency(3000);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+        super.tearDown();
+    }
+
+    public void testProjectShowsTheLinksOfAnUploadCompletedAfterTheBuild() throws Exception {
+        hudson.getDescriptorByType(TestflightRecorder.DescriptorImpl.class).setTokenPairs(Collections.singletonList(
+                new TokenPair("team", Secret.fromString("api"), Secret.fromString("team"), server.getEndpoint())));
+        FreeStyleProject project = createFreeStyleProject();
+        project.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                FileOutputStream out = new FileOutputStream(new File(build.getWorkspace().getRemote(), "App.ipa"));
+                try {
+                    out.write(new byte[64 * 1024]);
+                } finally {
+                    out.close();
+                }
+                return true;
+            }
+        });
+        TestflightRecorder recorder = new TestflightRecorder("team", null, null, false, "Async", false, "App.ipa", null, "", false,
+                null, null, null, 0, false, new TestflightTeam[0], 1, 1, null, null, null, null, null, 0, null, null, null,
+                false, true, false);
+        project.getPublishersList().add(recorder);
+
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        assertEquals(getLog(build), Result.SUCCESS, build.getResult());
+        assertTrue(getInstallLinks(recorder, project).isEmpty());
+
+        assertTrue(build.getAction(TestflightAsyncUploadAction.class).await(0));
+        List<String> installLinks = getInstallLinks(recorder, project);
+        assertEquals(1, installLinks.size());
+        assertTrue(installLinks.get(0), installLinks.get(0).startsWith("https://testflightapp.com/install/"));
+    }
+
+    private static List<String> getInstallLinks(TestflightRecorder recorder, FreeStyleProject project) {
+        List<String> installLinks = new ArrayList<String>();
+        for (Action action : recorder.getProjectActions(project)) {
+            if (action instanceof TestflightBuildAction && action.getUrlName().contains("/install/")) {
+                installLinks.add(action.getUrlName());
+            }
+        }
+        return installLinks;
+    }
+}
@@ -0,0 +1,108 @@
+package testflight;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import hudson.Util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestflightUploaderEndpointTest {
+    private StandInTestflightServer server;
+    private File dir;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StandInTestflightServer().withTokens("api", "team");
+        dir = Util.createTempDir();
+        TokenValidator.clear();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        server.stop();
+        Util.deleteRecursive(dir);
+    }
+
+    @Test
+    public void uploadsTheFormToTheEndpoint() throws Exception {
+        TestflightUploader.UploadRequest ur = createUploadRequest();
+
+        Map result = new TestflightUploader().upload(ur);
+
+        assertTrue(((String) result.get("install_url")).startsWith("https://testflightapp.com/install/"));
+        assertTrue(((String) result.get("config_url")).startsWith("https://testflightapp.com/dashboard/builds/report/"));
+        assertEquals(1, server.getUploads().size());
+        StandInTestflightServer.Upload upload = server.getUploads().get(0);
+        assertEquals("notes", upload.fields.get("notes"));
+        assertEquals("False", upload.fields.get("notify"));
+        assertEquals(Long.valueOf(ur.file.length()), upload.files.get("file"));
+    }
+
+    @Test
+    public void retriesTheInjectedServerErrors() throws Exception {
+        server.failNext(503, 502);
+        TestflightUploader.UploadRequest ur = createUploadRequest();
+        ur.maxAttempts = 3;
+
+        Map result = new TestflightUploader().upload(ur);
+
+        assertTrue(result.containsKey("install_url"));
+        assertEquals(3, server.getUploads().size());
+    }
+
+    @Test
+    public void rejectsWrongTokensBeforeSendingTheFile() throws Exception {
+        TestflightUploader.UploadRequest ur = createUploadRequest();
+        ur.teamToken = "wrong";
+        ur.tokenCheckTtlMillis = 60000;
+
+        try {
+            new TestflightUploader().upload(ur);
+            fail();
+        } catch (UploadException e) {
+            assertEquals(401, e.getStatusCode());
+        }
+        assertEquals(1, server.getUploads().size());
+        assertTrue(server.getUploads().get(0).files.isEmpty());
+    }
+
+    @Test
+    public void splitsTheEndpointIntoHostAndPath() {
+        TestflightUploader.UploadRequest ur = new TestflightUploader.UploadRequest();
+        assertEquals("http://testflightapp.com", TestflightUploader.getTargetHost(TestflightUploader.getEndpoint(ur)).toURI());
+        assertEquals("/api/builds.json", TestflightUploader.getPath(TestflightUploader.getEndpoint(ur)));
+
+        ur.endpoint = " https://mirror.example.com:8443/testflight/builds.json?team=a ";
+        assertEquals("https://mirror.example.com:8443", TestflightUploader.getTargetHost(TestflightUploader.getEndpoint(ur)).toURI());
+        assertEquals("/testflight/builds.json?team=a", TestflightUploader.getPath(TestflightUploader.getEndpoint(ur)));
+    }
+
+    private TestflightUploader.UploadRequest createUploadRequest() throws IOException {
+        TestflightUploader.UploadRequest ur = new TestflightUploader.UploadRequest();
+        ur.endpoint = server.getEndpoint();
+        ur.apiToken = "api";
+        ur.teamToken = "team";
+        ur.buildNotes = "notes";
+        ur.lists = "";
+        ur.notifyTeam = false;
+        ur.replace = false;
+        ur.maxAttempts = 1;
+        ur.file = new File(dir, "app.ipa");
+        FileOutputStream out = new FileOutputStream(ur.file);
+        try {
+            out.write(new byte[64 * 1024]);
+        } finally {
+            out.close();
+        }
+        return ur;
+    }
+}
@@ -0,0 +1,159 @@
+package testflight;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import hudson.Util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static testflight.TestFixtures.write;
+
+public class TestflightUploaderTest {
+    @Test
+    public void retriesConnectionErrorsAndServerErrors() throws Exception {
+        FailingUploader uploader = new FailingUploader(new SocketException("Connection reset"), new UploadException(503, "", null));
+
+        Map result = uploader.upload(createTestUploadRequest(3));
+
+        assertEquals(3, uploader.attempts);
+        assertEquals("http://install", result.get("install_url"));
+    }
+
+    @Test
+    public void doesNotRetryClientErrors() throws Exception {
+        FailingUploader uploader = new FailingUploader(new UploadException(401, "", null));
+
+        try {
+            uploader.upload(createTestUploadRequest(3));
+            fail();
+        } catch (UploadException e) {
+            assertEquals(401, e.getStatusCode());
+        }
+        assertEquals(1, uploader.attempts);
+    }
+
+    @Test
+    public void stopsAfterMaxAttempts() throws Exception {
+        FailingUploader uploader = new FailingUploader(new SocketException("1"), new SocketException("2"), new SocketException("3"));
+
+        try {
+            uploader.upload(createTestUploadRequest(2));
+            fail();
+        } catch (SocketException e) {
+            assertEquals("2", e.getMessage());
+        }
+        assertEquals(2, uploader.attempts);
+    }
+
+    @Test
+    public void backoffDelayGrowsAndIsCapped() {
+        Random random = new Random(0);
+        for (int attempt = 1; attempt < 5; attempt++) {
+            long delay = TestflightUploader.backoffDelay(attempt, 1000, random);
+            long expected = 1000L << (attempt - 1);
+            assertTrue(delay >= expected / 2 && delay <= expected);
+        }
+        assertTrue(TestflightUploader.backoffDelay(100, 1000, random) <= TestflightUploader.MAX_RETRY_DELAY_MILLIS);
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentIdenticalUploadsShareOneRequest() throws Exception {
+        File dir = Util.createTempDir();
+        final CountDownLatch uploading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger requests = new AtomicInteger();
+        final TestflightUploader uploader = new TestflightUploader() {
+            @Override
+            Map uploadOnce(UploadRequest ur) throws IOException {
+                requests.incrementAndGet();
+                uploading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                Map result = new HashMap();
+                result.put("install_url", "http://install");
+                return result;
+            }
+        };
+        final TestflightUploader.UploadRequest first = createTestUploadRequest(1);
+        first.file = write(new File(dir, "a.ipa"), "same");
+        TestflightUploader.UploadRequest second = createTestUploadRequest(1);
+        second.file = write(new File(dir, "b.ipa"), "same");
+
+        final Map[] firstResult = new Map[1];
+        Thread leader = new Thread() {
+            public void run() {
+                try {
+                    firstResult[0] = uploader.upload(first);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        leader.start();
+        uploading.await();
+
+        final Thread follower = Thread.currentThread();
+        new Thread() {
+            public void run() {
+                // only lets the first upload finish once the second one waits for it
+                while (follower.getState() != State.WAITING) {
+                    Thread.yield();
+                }
+                release.countDown();
+            }
+        }.start();
+        Map result = uploader.upload(second);
+        leader.join();
+
+        assertEquals(1, requests.get());
+        assertEquals("http://install", result.get("install_url"));
+        assertEquals("http://install", firstResult[0].get("install_url"));
+    }
+
+    private static TestflightUploader.UploadRequest createTestUploadRequest(int maxAttempts) {
+        TestflightUploader.UploadRequest r = new TestflightUploader.UploadRequest();
+        r.maxAttempts = maxAttempts;
+        r.retryDelayMillis = 0;
+        return r;
+    }
+
+    /**
+     * Fails with the given exceptions, then succeeds.
+     */
+    static class FailingUploader extends TestflightUploader {
+        final Exception[] failures;
+        int attempts;
+
+        FailingUploader(Exception... failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        Map uploadOnce(UploadRequest ur) throws IOException {
+            attempts++;
+            if (attempts <= failures.length) {
+                Exception failure = failures[attempts - 1];
+                if (failure instanceof IOException)
+                    throw (IOException) failure;
+                throw (RuntimeException) failure;
+            }
+            Map result = new HashMap();
+            result.put("install_url", "http://install");
+            return result;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package testflight;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+    @Test
+    public void burstIsNotThrottled() throws Exception {
+        TokenBucket bucket = new TokenBucket(1024);
+        long start = System.nanoTime();
+        bucket.acquire(16 * 1024);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis < 100);
+    }
+
+    @Test
+    public void rateIsEnforced() throws Exception {
+        // 1 MB/s with a 100 KB burst: 400 KB more take at least 0.3 s
+        TokenBucket bucket = new TokenBucket(1024 * 1024);
+        long start = System.nanoTime();
+        for (int i = 0; i < 50; i++) {
+            bucket.acquire(10 * 1024);
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis >= 300);
+    }
+}
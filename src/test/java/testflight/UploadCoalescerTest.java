@@ -0,0 +1,91 @@
+package testflight;
+
+import java.io.File;
+import java.io.IOException;
+
+import hudson.Util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static testflight.TestFixtures.write;
+
+public class UploadCoalescerTest {
+    @Test
+    public void onlyJoinsUploadsToTheSameEndpointWithTheSameTokens() throws IOException {
+        File ipa = write(new File(Util.createTempDir(), "app.ipa"), "same");
+        TestflightUploader.UploadRequest leader = createUploadRequest(ipa);
+        UploadCoalescer.Flight flight = UploadCoalescer.get().join(leader);
+        assertTrue(flight.isLedBy(leader));
+        try {
+            TestflightUploader.UploadRequest otherEndpoint = createUploadRequest(ipa);
+            otherEndpoint.endpoint = "https://mirror.example.com/api/builds.json";
+            UploadCoalescer.Flight otherEndpointFlight = UploadCoalescer.get().join(otherEndpoint);
+            otherEndpointFlight.land(null);
+            assertNotSame(flight, otherEndpointFlight);
+
+            TestflightUploader.UploadRequest otherApiToken = createUploadRequest(ipa);
+            otherApiToken.apiToken = "other";
+            UploadCoalescer.Flight otherApiTokenFlight = UploadCoalescer.get().join(otherApiToken);
+            otherApiTokenFlight.land(null);
+            assertNotSame(flight, otherApiTokenFlight);
+
+            assertSame(flight, UploadCoalescer.get().join(createUploadRequest(ipa)));
+        } finally {
+            flight.land(null);
+        }
+    }
+
+    @Test
+    public void onlyJoinsUploadsWithTheSameDsym() throws IOException {
+        File dir = Util.createTempDir();
+        File ipa = write(new File(dir, "app.ipa"), "same");
+        TestflightUploader.UploadRequest leader = createUploadRequest(ipa);
+        leader.dsymFile = write(new File(dir, "app-dSYM.zip"), "dsym 1");
+        UploadCoalescer.Flight flight = UploadCoalescer.get().join(leader);
+        assertTrue(flight.isLedBy(leader));
+        try {
+            TestflightUploader.UploadRequest otherDsym = createUploadRequest(ipa);
+            otherDsym.dsymFile = write(new File(dir, "other-dSYM.zip"), "dsym 2");
+            UploadCoalescer.Flight otherDsymFlight = UploadCoalescer.get().join(otherDsym);
+            otherDsymFlight.land(null);
+            assertNotSame(flight, otherDsymFlight);
+
+            TestflightUploader.UploadRequest sameDsym = createUploadRequest(ipa);
+            sameDsym.dsymFile = write(new File(dir, "copy-dSYM.zip"), "dsym 1");
+            assertSame(flight, UploadCoalescer.get().join(sameDsym));
+        } finally {
+            flight.land(null);
+        }
+    }
+
+    @Test
+    public void doesNotReadTheFileInFlightAgainWhenItWasAlreadyHashed() throws IOException {
+        File dir = Util.createTempDir();
+        File ipa = write(new File(dir, "app.ipa"), "hashed");
+        ArtifactDigests.sha256(ipa);
+        TestflightUploader.UploadRequest leader = createUploadRequest(ipa);
+        UploadCoalescer.Flight flight = UploadCoalescer.get().join(leader);
+        try {
+            // it couldn't be read anymore
+            ipa.delete();
+            assertSame(flight, UploadCoalescer.get().join(createUploadRequest(write(new File(dir, "copy.ipa"), "hashed"))));
+        } finally {
+            flight.land(null);
+        }
+    }
+
+    private static TestflightUploader.UploadRequest createUploadRequest(File file) {
+        TestflightUploader.UploadRequest ur = new TestflightUploader.UploadRequest();
+        ur.apiToken = "api";
+        ur.teamToken = "team";
+        ur.buildNotes = "notes";
+        ur.lists = "";
+        ur.notifyTeam = false;
+        ur.replace = false;
+        ur.file = file;
+        return ur;
+    }
+}
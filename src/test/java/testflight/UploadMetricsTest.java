@@ -0,0 +1,98 @@
+package testflight;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UploadMetricsTest {
+    @After
+    public void clearMetrics() {
+        UploadMetrics.clear();
+    }
+
+    @Test
+    public void countsUploadsRetriesAndFailuresByStatus() throws Exception {
+        TestflightUploaderTest.FailingUploader uploader = new TestflightUploaderTest.FailingUploader(new SocketException("Connection reset"));
+        uploader.upload(createUploadRequest("team", 2));
+        uploader = new TestflightUploaderTest.FailingUploader(new UploadException(503, "", null), new UploadException(401, "", null));
+        try {
+            uploader.upload(createUploadRequest("team", 3));
+            fail();
+        } catch (UploadException e) {
+            assertEquals(401, e.getStatusCode());
+        }
+
+        UploadMetrics metrics = UploadMetrics.forTokenPair("team");
+        assertEquals(2, metrics.getUploadsStarted());
+        assertEquals(1, metrics.getUploadsSucceeded());
+        assertEquals(1, metrics.getUploadsFailed());
+        assertEquals("401=1", metrics.getFailuresByStatus());
+        assertEquals(2, metrics.getRetries());
+        assertEquals(0, metrics.getUploadsInFlight());
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(UploadMetrics.getObjectName(metrics)));
+    }
+
+    @Test
+    public void countsDurationsInBuckets() {
+        UploadMetrics metrics = UploadMetrics.forTokenPair("team");
+        metrics.uploadStarted();
+        metrics.uploadSucceeded(100);
+        metrics.uploadStarted();
+        metrics.uploadFailed(UploadMetrics.NO_STATUS, 1500);
+        metrics.uploadStarted();
+        metrics.uploadSucceeded(Long.MAX_VALUE / 2);
+
+        long[] counts = metrics.getUploadLatencyBucketCounts();
+        assertEquals(UploadMetrics.BUCKET_BOUNDS_MILLIS.length + 1, counts.length);
+        assertEquals(1, counts[0]);
+        assertEquals(1, counts[3]);
+        assertEquals(1, counts[counts.length - 1]);
+        assertEquals("0=1", metrics.getFailuresByStatus());
+    }
+
+    @Test
+    public void writesThePrometheusTextFormat() {
+        UploadMetrics metrics = UploadMetrics.forTokenPair("My \"team\"");
+        metrics.uploadStarted();
+        metrics.bytesSent(1024);
+        metrics.uploadFailed(503, 700);
+        metrics.waitedForSlots(50);
+
+        Map<String, List<UploadMetrics.Snapshot>> snapshotsByNode = new LinkedHashMap<String, List<UploadMetrics.Snapshot>>();
+        snapshotsByNode.put("mac1", UploadMetrics.snapshotAll());
+        snapshotsByNode.put("mac2", Collections.<UploadMetrics.Snapshot>emptyList());
+        StringWriter out = new StringWriter();
+        UploadMetrics.writePrometheus(new PrintWriter(out), snapshotsByNode);
+        String text = out.toString();
+
+        String labels = "node=\"mac1\",token_pair=\"My \\\"team\\\"\"";
+        assertTrue(text, text.contains("# TYPE testflight_uploads_started_total counter\ntestflight_uploads_started_total{" + labels + "} 1\n"));
+        assertTrue(text, text.contains("testflight_uploads_failed_total{" + labels + ",status=\"503\"} 1\n"));
+        assertTrue(text, text.contains("testflight_upload_bytes_sent_total{" + labels + "} 1024\n"));
+        assertTrue(text, text.contains("testflight_upload_duration_seconds_bucket{" + labels + ",le=\"0.5\"} 0\n"));
+        assertTrue(text, text.contains("testflight_upload_duration_seconds_bucket{" + labels + ",le=\"1.0\"} 1\n"));
+        assertTrue(text, text.contains("testflight_upload_duration_seconds_bucket{" + labels + ",le=\"+Inf\"} 1\n"));
+        assertTrue(text, text.contains("testflight_upload_duration_seconds_sum{" + labels + "} 0.7\n"));
+        assertTrue(text, text.contains("testflight_upload_queue_wait_seconds_count{" + labels + "} 1\n"));
+    }
+
+    private static TestflightUploader.UploadRequest createUploadRequest(String tokenPairName, int maxAttempts) {
+        TestflightUploader.UploadRequest r = new TestflightUploader.UploadRequest();
+        r.tokenPairName = tokenPairName;
+        r.maxAttempts = maxAttempts;
+        r.retryDelayMillis = 0;
+        return r;
+    }
+}
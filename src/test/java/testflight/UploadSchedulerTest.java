@@ -0,0 +1,68 @@
+package testflight;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class UploadSchedulerTest {
+    @Test(timeout = 10000)
+    public void highPriorityUploadsStartFirst() throws Exception {
+        final UploadScheduler scheduler = new UploadScheduler();
+        UploadScheduler.Ticket running = scheduler.acquire("node", 1, UploadScheduler.Priority.NORMAL, 1, 0);
+
+        final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+        Thread low = startUpload(scheduler, "node", "low", UploadScheduler.Priority.LOW, 1, 0, started);
+        waitForWaiters(scheduler, 1);
+        Thread high = startUpload(scheduler, "node", "high", UploadScheduler.Priority.HIGH, 1, 0, started);
+        waitForWaiters(scheduler, 2);
+
+        scheduler.release(running);
+        low.join();
+        high.join();
+
+        assertEquals(2, started.size());
+        assertEquals("high", started.get(0));
+    }
+
+    @Test(timeout = 10000)
+    public void nodeLimitDoesNotBlockOtherNodes() throws Exception {
+        UploadScheduler scheduler = new UploadScheduler();
+        scheduler.acquire("node1", 1, UploadScheduler.Priority.NORMAL, 0, 1);
+
+        final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+        startUpload(scheduler, "node1", "node1", UploadScheduler.Priority.HIGH, 0, 1, started);
+        waitForWaiters(scheduler, 1);
+
+        UploadScheduler.Ticket ticket = scheduler.acquire("node2", 1, UploadScheduler.Priority.LOW, 0, 1);
+        assertEquals("node2", ticket.node);
+        assertEquals(0, started.size());
+    }
+
+    private static Thread startUpload(final UploadScheduler scheduler, final String node, final String name, final UploadScheduler.Priority priority,
+                                      final int maxUploads, final int maxUploadsPerNode, final List<String> started) {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    UploadScheduler.Ticket ticket = scheduler.acquire(node, 1, priority, maxUploads, maxUploadsPerNode);
+                    started.add(name);
+                    scheduler.release(ticket);
+                } catch (InterruptedException e) {
+                    // test is over
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private static void waitForWaiters(UploadScheduler scheduler, int count) throws InterruptedException {
+        while (scheduler.getWaitingCount() < count) {
+            Thread.sleep(10);
+        }
+    }
+}
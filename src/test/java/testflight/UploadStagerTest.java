@@ -0,0 +1,60 @@
+package testflight;
+
+import hudson.Util;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static testflight.TestFixtures.createListener;
+import static testflight.TestFixtures.touch;
+
+public class UploadStagerTest {
+    @Test
+    public void copiesTheFilesOutOfTheWorkspace() throws Throwable {
+        File workspace = Util.createTempDir();
+        File ipa = touch(new File(workspace, "build/app.ipa"));
+        touch(new File(workspace, "build/app.app.dSYM/Contents/Info.plist"));
+        touch(new File(workspace, "other/app.apk"));
+
+        TestflightUploader.UploadRequest ipaTeam = new TestflightUploader.UploadRequest();
+        ipaTeam.filePaths = "**/*.ipa";
+        TestflightUploader.UploadRequest missingTeam = new TestflightUploader.UploadRequest();
+        missingTeam.filePaths = "**/*.zip";
+        UploadStager.StagedUploads staged = new UploadStager(workspace.getPath(), Arrays.asList(ipaTeam, missingTeam), createListener()).call();
+
+        assertEquals(1, staged.requests.size());
+        assertEquals(Arrays.asList(missingTeam), staged.teamsWithoutFiles);
+        TestflightUploader.UploadRequest ur = staged.requests.get(0);
+        File stagedIpa = new File(ur.filePaths);
+        assertTrue(stagedIpa.getPath().startsWith(staged.stagingDir));
+        assertTrue(stagedIpa.isFile());
+        assertEquals("app.ipa", stagedIpa.getName());
+        assertTrue(new File(ur.dsymPath, "Contents/Info.plist").isFile());
+        assertNull(ur.file);
+
+        ipa.delete();
+        assertTrue(stagedIpa.isFile());
+        assertFalse(new File(staged.stagingDir).getPath().startsWith(workspace.getPath()));
+    }
+
+    @Test
+    public void copiesTheFilesOfResolvedRequestsAsIs() throws Throwable {
+        File workspace = Util.createTempDir();
+        TestflightUploader.UploadRequest resolved = new TestflightUploader.UploadRequest();
+        resolved.file = touch(new File(workspace, "build/app.ipa"));
+        resolved.dsymFile = touch(new File(workspace, "build/app-dSYM.zip"));
+        UploadStager.StagedUploads staged = new UploadStager(workspace.getPath(), Arrays.asList(resolved), createListener()).call();
+
+        assertEquals(1, staged.requests.size());
+        TestflightUploader.UploadRequest ur = staged.requests.get(0);
+        assertTrue(new File(ur.filePaths).isFile());
+        assertTrue(new File(ur.dsymPath).isFile());
+        assertEquals("app-dSYM.zip", new File(ur.dsymPath).getName());
+    }
+}